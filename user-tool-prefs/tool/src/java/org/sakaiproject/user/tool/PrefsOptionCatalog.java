@@ -0,0 +1,160 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.user.tool;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.PreDestroy;
+import javax.faces.model.SelectItem;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.component.api.ServerConfigurationService.ConfigItem;
+import org.sakaiproject.component.api.ServerConfigurationService.ConfigurationListener;
+import org.sakaiproject.util.ResourceLoader;
+
+/**
+ * PrefsOptionCatalog holds the time zone and language choices offered by the Preferences tool. It is an application scoped bean, so the lists
+ * are built once and shared, read only, by every user's UserPrefsTool. The language list is kept per display locale and is dropped when the
+ * "locales" configuration changes; the time zones are read again after any configuration change. The configuration service has no way to take a listener off, so once the bean is destroyed it ignores the changes.
+ */
+public class PrefsOptionCatalog implements ConfigurationListener
+{
+	/** Our log (commons). */
+	private static final Log LOG = LogFactory.getLog(PrefsOptionCatalog.class);
+
+	/** The configuration that getSakaiLocales() is built from. */
+	private static final List<String> LOCALE_CONFIG = Arrays.asList("locales", "locales.more");
+
+	/** Server configuration service (injected dependency) */
+	protected ServerConfigurationService m_serverConfigurationService = null;
+
+	/** The time zone choices, all display locales share them. */
+	private volatile List<SelectItem> m_timeZones = null;
+
+	/** The language choices, by the locale they are displayed in. */
+	private final ConcurrentMap<Locale, List<SelectItem>> m_locales = new ConcurrentHashMap<Locale, List<SelectItem>>();
+
+	/** Set once the bean is destroyed, after which configuration changes are ignored. */
+	private volatile boolean m_destroyed = false;
+
+	/**
+	 * @param service
+	 *        The server configuration service.
+	 */
+	public void setServerConfigurationService(ServerConfigurationService service)
+	{
+		if (LOG.isDebugEnabled())
+		{
+			LOG.debug("setServerConfigurationService(ServerConfigurationService " + service + ")");
+		}
+
+		m_serverConfigurationService = service;
+		m_serverConfigurationService.registerListener(this);
+	}
+
+	/**
+	 * Stop following configuration changes and drop the choices, as the tool is going away.
+	 */
+	@PreDestroy
+	public void destroy()
+	{
+		m_destroyed = true;
+		m_timeZones = null;
+		m_locales.clear();
+	}
+
+	/**
+	 * @return The time zone choices, sorted by id.
+	 */
+	public List<SelectItem> getTimeZones()
+	{
+		List<SelectItem> timeZones = m_timeZones;
+		if (timeZones == null)
+		{
+			String[] timeZoneArray = TimeZone.getAvailableIDs();
+			Arrays.sort(timeZoneArray);
+			List<SelectItem> items = new ArrayList<SelectItem>(timeZoneArray.length);
+			for (int i = 0; i < timeZoneArray.length; i++)
+				items.add(new SelectItem(timeZoneArray[i], timeZoneArray[i]));
+
+			timeZones = Collections.unmodifiableList(items);
+			m_timeZones = timeZones;
+		}
+
+		return timeZones;
+	}
+
+	/**
+	 * @param msgs
+	 *        The user's resource loader, which sets the display locale and names the languages.
+	 * @return The language choices, as the user sees them.
+	 */
+	public List<SelectItem> getLocales(ResourceLoader msgs)
+	{
+		Locale displayLocale = msgs.getLocale();
+		List<SelectItem> locales = m_locales.get(displayLocale);
+		if (locales == null)
+		{
+			Locale[] localeArray = m_serverConfigurationService.getSakaiLocales();
+			List<SelectItem> items = new ArrayList<SelectItem>(localeArray.length);
+			for (int i = 0; i < localeArray.length; i++)
+			{
+				if (i == 0 || !localeArray[i].equals(localeArray[i - 1])) {
+					items.add(new SelectItem(localeArray[i].toString(), msgs.getLocaleDisplayName(localeArray[i])));
+				}
+			}
+
+			locales = Collections.unmodifiableList(items);
+			m_locales.put(displayLocale, locales);
+		}
+
+		return locales;
+	}
+
+	public ConfigItem changing(ConfigItem currentConfigItem, ConfigItem newConfigItem)
+	{
+		return null;
+	}
+
+	public void changed(ConfigItem configItem, ConfigItem previousConfigItem)
+	{
+		if (m_destroyed) return;
+
+		// the time zones do not come from the configuration, but a change is the chance to pick up a new list from the JVM
+		m_timeZones = null;
+
+		if (configItem != null && LOCALE_CONFIG.contains(configItem.getName()))
+		{
+			LOG.debug("changed(): " + configItem.getName() + ", clearing language choices");
+			m_locales.clear();
+		}
+	}
+}
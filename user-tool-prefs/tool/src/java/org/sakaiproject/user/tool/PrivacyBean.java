@@ -21,10 +21,14 @@
 
 package org.sakaiproject.user.tool;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.faces.application.FacesMessage;
 import javax.faces.component.UIComponent;
@@ -42,6 +46,7 @@ import org.sakaiproject.api.privacy.PrivacyManager;
 import org.sakaiproject.tool.cover.SessionManager;
 import org.sakaiproject.site.api.Site;
 import org.sakaiproject.site.cover.SiteService;
+import org.sakaiproject.thread_local.cover.ThreadLocalManager;
 import org.sakaiproject.tool.cover.ToolManager;
 import org.sakaiproject.util.ResourceLoader;
 
@@ -54,6 +59,7 @@ public class PrivacyBean {
 	private final String SHOW = "privacy_check_show";
 	private final String SET_SHOW_ALL_STRING = "privacy_show_all_set";
 	private final String SET_HIDE_ALL_STRING = "privacy_hide_all_set";
+	private final String SET_ALL_FAILED_STRING = "privacy_all_failed";
 	private final String SHOW_ME="Show Me";
 	
 	private String checkboxText;
@@ -66,6 +72,7 @@ public class PrivacyBean {
 	private String curSite;
 	private boolean allChanged = false;
 	private String changeAllMsg;
+	private String changeAllFailedMsg;
 	private boolean noSiteProcessErr = false;
 
     //my code
@@ -81,6 +88,22 @@ public class PrivacyBean {
 
 	private Log LOG = LogFactory.getLog(PrivacyBean.class);
 
+	/** ThreadLocalManager key for the privacy lookups made in the current request */
+	private static final String REQUEST_STATUS = "PrivacyBean.requestStatus";
+
+	/** Number of lookups answered from the request cache since startup, a total for the whole JVM across all users */
+	private static final AtomicLong totalLookupsSaved = new AtomicLong();
+
+	/**
+	 * The privacy lookups made in one request: the rendering of privacy.jsp asks for
+	 * the same status several times.
+	 */
+	private static class RequestStatus {
+		private Boolean myWorkspace;
+		private final Map<String, Boolean> viewable = new HashMap<String, Boolean>();
+		private final Map<String, Boolean> userMadeSelection = new HashMap<String, Boolean>();
+	}
+
 	public void setPrivacyManager(PrivacyManager privacyManager) {
 		this.privacyManager = privacyManager;
 	}
@@ -107,6 +130,10 @@ public class PrivacyBean {
 		return changeAllMsg;
 	}
 
+	public String getChangeAllFailedMsg() {
+		return changeAllFailedMsg;
+	}
+
 	public boolean isNoSiteProcessErr() {
 		return noSiteProcessErr;
 	}
@@ -136,8 +163,8 @@ public class PrivacyBean {
 			Boolean userMadeSelection = false;
 			Boolean currentStatus = false;
 			
-			userMadeSelection = privacyManager.userMadeSelection(curSite, getUserId());
-			currentStatus = privacyManager.isViewable(curSite, getUserId());
+			userMadeSelection = userMadeSelection(curSite);
+			currentStatus = isViewable(curSite);
 						
 			displayPopup = (userMadeSelection || currentStatus ? false : true);
 		}
@@ -160,7 +187,7 @@ public class PrivacyBean {
 			curSite = getContextId();
 		}
 
-		if (privacyManager.isViewable(curSite, getUserId())) {
+		if (isViewable(curSite)) {
 			return VISIBLE;//getMessageBundleString(VISIBLE);
 		} 
 		else {
@@ -186,10 +213,10 @@ public class PrivacyBean {
 	 */
 	public boolean isShow() {
 		if (isMyWorkspace()) {
-			return privacyManager.isViewable(curSite, getUserId());
+			return isViewable(curSite);
 		} 
 		else {
-			return privacyManager.isViewable(getContextId(), getUserId());
+			return isViewable(getContextId());
 		}
 	}
 
@@ -197,17 +224,25 @@ public class PrivacyBean {
 	 * Returns TRUE if on MyWorkspace, FALSE if on a specific site
 	 */
 	public boolean isMyWorkspace() {
+		RequestStatus status = getRequestStatus();
+		if (status.myWorkspace != null) {
+			lookupSaved();
+			return status.myWorkspace;
+		}
 
 		// get Site id
 		String siteId = getContextId();
 
-		if (SiteService.getUserSiteId("admin").equals(siteId))
+		if (SiteService.getUserSiteId("admin").equals(siteId)) {
+			status.myWorkspace = false;
 			return false;
+		}
 
 		final boolean where = SiteService.isUserSite(siteId);
 
 		LOG.debug("Result of determinig if My Workspace: " + where);
 
+		status.myWorkspace = where;
 		return where;
 	}
 
@@ -219,7 +254,7 @@ public class PrivacyBean {
 			curSite = getContextId();
 		}
 
-		if (privacyManager.isViewable(curSite, getUserId())) {
+		if (isViewable(curSite)) {
 			checkboxText = getMessageBundleString(HIDE);
 		}
 		else {
@@ -290,6 +325,7 @@ public class PrivacyBean {
 		}
 		
 		privacyManager.setDefaultPrivacyState(getUserId(), defaultPrivacyStatus);
+		clearRequestStatus();
 		setUpdateMessage(true);
 
 		/**
@@ -312,6 +348,7 @@ public class PrivacyBean {
 	private void processChoice(String contextId, Boolean status) {
 		privacyManager.setViewableState(contextId, getUserId(), status,
 				privacyManager.USER_RECORD_TYPE);
+		clearRequestStatus();
 
 	}
 
@@ -319,17 +356,9 @@ public class PrivacyBean {
 	 * Sets the user's privacy status to Visible for all sites
 	 */
 	public String processShowAll() {
-		List mySites = getSiteList();
-
-		Iterator siteIter = mySites.iterator();
-
-		while (siteIter.hasNext()) {
-			Site curSite = (Site) siteIter.next();
-
-			processChoice("/site/" + curSite.getId(), Boolean.TRUE);
-		}
+		changeAllFailedMsg = processChoiceForAll(Boolean.TRUE);
 
-		allChanged = true;
+		allChanged = (changeAllFailedMsg == null);
 		changeAllMsg = getMessageBundleString(SET_SHOW_ALL_STRING);
 
 		// Below so UI shows no site selected
@@ -343,17 +372,9 @@ public class PrivacyBean {
 	 * Sets the user's privacy status to Hidden for all sites
 	 */
 	public String processHideAll() {
-		List mySites = getSiteList();
-
-		Iterator siteIter = mySites.iterator();
-
-		while (siteIter.hasNext()) {
-			Site curSite = (Site) siteIter.next();
+		changeAllFailedMsg = processChoiceForAll(Boolean.FALSE);
 
-			processChoice("/site/" + curSite.getId(), Boolean.FALSE);
-		}
-
-		allChanged = true;
+		allChanged = (changeAllFailedMsg == null);
 		changeAllMsg = getMessageBundleString(SET_HIDE_ALL_STRING);
 
 		// Below so UI shows no site selected
@@ -363,12 +384,53 @@ public class PrivacyBean {
 		return "main";
 	}
 
+	/**
+	 * Sets the privacy status for every site the user is in. The site contexts are collected up
+	 * front and written in one pass; a failure on one site is logged and the rest still get set.
+	 * 
+	 * @return null if every site was set, otherwise a message for the user with the number of sites that failed
+	 */
+	private String processChoiceForAll(Boolean status) {
+		final long start = System.currentTimeMillis();
+
+		List mySites = getSiteList();
+		List<String> contextIds = new ArrayList<String>(mySites.size());
+		for (Iterator siteIter = mySites.iterator(); siteIter.hasNext();) {
+			contextIds.add("/site/" + ((Site) siteIter.next()).getId());
+		}
+
+		final String userId = getUserId();
+		int failed = 0;
+		for (String contextId : contextIds) {
+			try {
+				privacyManager.setViewableState(contextId, userId, status,
+						privacyManager.USER_RECORD_TYPE);
+			}
+			catch (Exception e) {
+				failed++;
+				LOG.warn("Unable to set privacy status for " + userId + " in " + contextId, e);
+			}
+		}
+
+		clearRequestStatus();
+
+		LOG.info("Set privacy status " + (status ? "visible" : "hidden") + " for " + userId + " in "
+				+ (contextIds.size() - failed) + " of " + contextIds.size() + " sites in "
+				+ (System.currentTimeMillis() - start) + " ms" + (failed > 0 ? ", " + failed + " failed" : ""));
+
+		if (failed == 0) {
+			return null;
+		}
+		return msgs.getFormattedMessage(SET_ALL_FAILED_STRING, new Object[] { failed, contextIds.size() });
+	}
+
 	/**
 	 * Sets Bean variables to affect display when dropdown list
 	 * in MyWorkspace is changed.
 	 */
 	public void processSiteSelected(ValueChangeEvent e) {
 		allChanged = false;
+		changeAllFailedMsg = null;
 		noSiteProcessErr = false;
 		
 		if ("".equals((String) e.getNewValue())) {
@@ -402,6 +464,72 @@ public class PrivacyBean {
 					org.sakaiproject.site.api.SiteService.SortType.TITLE_ASC, null);
 	}
 
+	/**
+	 * Returns the privacy lookups already made in this request, creating them if this is the first.
+	 */
+	private RequestStatus getRequestStatus() {
+		RequestStatus status = (RequestStatus) ThreadLocalManager.get(REQUEST_STATUS);
+		if (status == null) {
+			status = new RequestStatus();
+			ThreadLocalManager.set(REQUEST_STATUS, status);
+		}
+		return status;
+	}
+
+	/**
+	 * Forgets the privacy lookups made in this request, as a status has been changed.
+	 */
+	private void clearRequestStatus() {
+		ThreadLocalManager.set(REQUEST_STATUS, null);
+	}
+
+	private void lookupSaved() {
+		long saved = totalLookupsSaved.incrementAndGet();
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Privacy lookups saved since startup (all users): " + saved);
+		}
+	}
+
+	/**
+	 * Returns TRUE if the current user is visible in the context, looked up once per request
+	 */
+	private boolean isViewable(String contextId) {
+		Map<String, Boolean> viewable = getRequestStatus().viewable;
+		Boolean result = viewable.get(contextId);
+		if (result != null) {
+			lookupSaved();
+			return result;
+		}
+
+		result = privacyManager.isViewable(contextId, getUserId());
+		viewable.put(contextId, result);
+		return result;
+	}
+
+	/**
+	 * Returns TRUE if the current user has chosen a status in the context, looked up once per request
+	 */
+	private boolean userMadeSelection(String contextId) {
+		Map<String, Boolean> userMadeSelection = getRequestStatus().userMadeSelection;
+		Boolean result = userMadeSelection.get(contextId);
+		if (result != null) {
+			lookupSaved();
+			return result;
+		}
+
+		result = privacyManager.userMadeSelection(contextId, getUserId());
+		userMadeSelection.put(contextId, result);
+		return result;
+	}
+
+	/**
+	 * Returns the number of privacy and workspace lookups answered from the request cache since startup,
+	 * a total for the whole JVM rather than for this user or request
+	 */
+	public long getTotalLookupsSaved() {
+		return totalLookupsSaved.get();
+	}
+
 	/**
 	 * Returns context id (/site/site id)
 	 */
@@ -29,6 +29,7 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -55,6 +56,7 @@ import org.sakaiproject.site.api.Site;
 import org.sakaiproject.site.api.SiteService.SelectionType;
 import org.sakaiproject.site.api.SiteService.SortType;
 import org.sakaiproject.site.cover.SiteService;
+import org.sakaiproject.thread_local.cover.ThreadLocalManager;
 import org.sakaiproject.time.cover.TimeService;
 import org.sakaiproject.tool.api.SessionManager;
 import org.sakaiproject.tool.api.ToolSession;
@@ -90,6 +92,9 @@ public class UserPrefsTool
 	private static final String PREFS_EXPAND_TRUE = "1";
 	private static final String PREFS_EXPAND_FALSE = "0";
 
+	/** Request scoped count of preferences lookups, see getPreferences(). */
+	private static final String PREFS_LOOKUPS = "UserPrefsTool.prefsLookups";
+
 	/**
 	 * Represents a name value pair in a keyed preferences set.
 	 */
@@ -227,9 +232,13 @@ public class UserPrefsTool
 
 	private List prefOrderItems = new ArrayList();
 
-	private List prefTimeZones = new ArrayList();
+	/** Time zone and language choices set on this bean, overriding the shared catalog. */
+	private List prefTimeZones = null;
+
+	private List<SelectItem> prefLocales = null;
 
-	private List<SelectItem> prefLocales = new ArrayList<SelectItem>();
+	/** The shared time zone and language choices (injected dependency) */
+	protected PrefsOptionCatalog m_optionCatalog = null;
 
 	private int DEFAULT_TAB_COUNT = 4;
 	private int MAX_TAB_COUNT = 20;
@@ -287,9 +296,26 @@ public class UserPrefsTool
 	 */
 	private String m_TabOutcome = "tab";
 	
+	/** The sites shown on the tab page, as last read from the SiteService, and when they were read. */
+	private List<Site> m_tabSites = null;
+	private long m_tabSitesLoaded = 0;
+
+	/** How long (ms) the tab page may reuse m_tabSites after a save before reading the sites again. */
+	private long m_tabSitesRefresh = 300000L;
+
+	/** Log every preferences lookup, with its count in the request, at info (prefs.lookups.log). */
+	private boolean m_logLookups = false;
+
 	private Map<String, Integer> m_sortedTypes = new HashMap<String, Integer>();
+	/** The site override grouping, see initSiteGrouping(): site id to type display, the terms to order courses by, and the types to expand. */
+	private Map<String, String> m_siteTypeDisplays = null;
+	private List<String> m_courseTermOrder = null;
+	private Set<String> m_expandedTypes = null;
 	private List<DecoratedNotificationPreference> m_registereddNotificationItems = new ArrayList<DecoratedNotificationPreference>();	
-	private List<Site> m_sites = new ArrayList<Site>();
+	/** The sites listed on the site override page, read on first use. */
+	private List<Site> m_sites = null;
+	/** Have the notification items been built for this session yet? */
+	private boolean m_notificationItemsLoaded = false;
 
 	// SAK-23895
 	private boolean prefShowTabLabelOption = true;
@@ -436,7 +462,7 @@ public class UserPrefsTool
 		if ( prefTabCount != null )
 			return prefTabCount;
 
-		Preferences prefs = (PreferencesEdit) m_preferencesService.getPreferences(getUserId());
+		Preferences prefs = getPreferences();
 		ResourceProperties props = prefs.getProperties(CHARON_PREFS);
 		prefTabCount = props.getProperty("tabs");
 
@@ -512,15 +538,9 @@ public class UserPrefsTool
 	 */
 	public List getPrefTimeZones()
 	{
-		if (prefTimeZones.size() == 0)
-		{
-			String[] timeZoneArray = TimeZone.getAvailableIDs();
-			Arrays.sort(timeZoneArray);
-			for (int i = 0; i < timeZoneArray.length; i++)
-				prefTimeZones.add(new SelectItem(timeZoneArray[i], timeZoneArray[i]));
-		}
+		if (prefTimeZones != null) return prefTimeZones;
 
-		return prefTimeZones;
+		return m_optionCatalog.getTimeZones();
 	}
 
 	/**
@@ -542,20 +562,9 @@ public class UserPrefsTool
 	 */
 	public List<SelectItem> getPrefLocales()
 	{
-		// Initialize list of supported locales, if necessary
-		if (prefLocales.isEmpty())
-		{
-		    org.sakaiproject.component.api.ServerConfigurationService scs = (org.sakaiproject.component.api.ServerConfigurationService) ComponentManager.get(org.sakaiproject.component.api.ServerConfigurationService.class);
-		    Locale[] localeArray = scs.getSakaiLocales();
-			for (int i = 0; i < localeArray.length; i++)
-			{
-				if (i == 0 || !localeArray[i].equals(localeArray[i - 1])) {
-					prefLocales.add(new SelectItem(localeArray[i].toString(), msgs.getLocaleDisplayName(localeArray[i])));
-				}
-			}
-		}
+		if (prefLocales != null) return prefLocales;
 
-		return prefLocales;
+		return m_optionCatalog.getLocales(msgs);
 	}
 
 	/**
@@ -623,7 +632,7 @@ public class UserPrefsTool
 	{
 		if (m_timeZone != null) return m_timeZone.getID();
 
-		Preferences prefs = (PreferencesEdit) m_preferencesService.getPreferences(getUserId());
+		Preferences prefs = getPreferences();
 		ResourceProperties props = prefs.getProperties(TimeService.APPLICATION_ID);
 		String timeZone = props.getProperty(TimeService.TIMEZONE_KEY);
 
@@ -654,7 +663,7 @@ public class UserPrefsTool
 	{
 		if (m_locale != null) return m_locale;
 
-		Preferences prefs = (PreferencesEdit) m_preferencesService.getPreferences(getUserId());
+		Preferences prefs = getPreferences();
 		ResourceProperties props = prefs.getProperties(ResourceLoader.APPLICATION_ID);
 		String prefLocale = props.getProperty(ResourceLoader.LOCALE_KEY);
 
@@ -704,6 +713,29 @@ public class UserPrefsTool
 		return m_sessionManager.getCurrentSessionUserId();
 	}
 
+	/**
+	 * Read the current user's preferences, counting the lookups made in this request. With prefs.lookups.log=true the count
+	 * is logged at info, so the requests still reading the preferences more than once can be found on a live server.
+	 * 
+	 * @return The user's Preferences.
+	 */
+	protected Preferences getPreferences()
+	{
+		Integer lookups = (Integer) ThreadLocalManager.get(PREFS_LOOKUPS);
+		lookups = (lookups == null) ? 1 : lookups + 1;
+		ThreadLocalManager.set(PREFS_LOOKUPS, lookups);
+		if (m_logLookups)
+		{
+			LOG.info("getPreferences(): lookup " + lookups + " in this request for " + getUserId());
+		}
+		else if (LOG.isDebugEnabled())
+		{
+			LOG.debug("getPreferences(): lookup " + lookups + " in this request");
+		}
+
+		return m_preferencesService.getPreferences(getUserId());
+	}
+
 	/**
 	 * @param userId
 	 *        The userId to set.
@@ -740,6 +772,20 @@ public class UserPrefsTool
 		m_userNotificationPreferencesRegistrationService = userNotificationPreferencesRegistrationService;
 	}
 
+	/**
+	 * @param catalog
+	 *        The shared time zone and language choices.
+	 */
+	public void setOptionCatalog(PrefsOptionCatalog catalog)
+	{
+		if (LOG.isDebugEnabled())
+		{
+			LOG.debug("setOptionCatalog(PrefsOptionCatalog " + catalog + ")");
+		}
+
+		m_optionCatalog = catalog;
+	}
+
 	/**
 	 * @param mgr
 	 *        The session manager.
@@ -859,24 +905,24 @@ public class UserPrefsTool
             LOG.warn("Invalid portal.default.tabs value specified ("+tabCountConfig+") must specify a number between 0 and 100, default to "+MAX_TAB_COUNT+": "+e);
         }
 		
-		initNotificationStructures();
+		m_tabSitesRefresh = ServerConfigurationService.getInt("prefs.tabs.sites.refresh", 300) * 1000L;
+		m_logLookups = ServerConfigurationService.getBoolean("prefs.lookups.log", false);
+
+		// the notification structures are built on first use, see getRegisteredNotificationItems() and getNotificationSites()
 		LOG.debug("new UserPrefsTool()");
 	}
 	
 	/**
-	 * Init a bunch of stuff that we'll need for the notification preferences
+	 * Get the sites for the notification site overrides, reading them the first time they are needed in this session.
+	 * @return
 	 */
-	private void initNotificationStructures() {
-		
-		initServices();
-		
-		//Get my sites
-		m_sites = SiteService.getSites(SelectionType.ACCESS, null, null, null,
-				SortType.TITLE_ASC, null);
-		
-		initRegisteredNotificationItems();
-		
-		
+	private List<Site> getNotificationSites() {
+		if (m_sites == null) {
+			//Get my sites
+			m_sites = SiteService.getSites(SelectionType.ACCESS, null, null, null,
+					SortType.TITLE_ASC, null);
+		}
+		return m_sites;
 	}
 
 	public int getNoti_selection()
@@ -1132,7 +1178,7 @@ public class UserPrefsTool
 		List prefExclude = new Vector();
 		List prefOrder = new Vector();
 
-		Preferences prefs = m_preferencesService.getPreferences(getUserId());
+		Preferences prefs = getPreferences();
 		ResourceProperties props = prefs.getProperties(CHARON_PREFS);
 		List l = props.getPropertyList("exclude");
 		if (l != null)
@@ -1148,83 +1194,114 @@ public class UserPrefsTool
 
 		List mySites = SiteService.getSites(org.sakaiproject.site.api.SiteService.SelectionType.ACCESS, null, null, null,
 				org.sakaiproject.site.api.SiteService.SortType.TITLE_ASC, null);
+		// remember the sites so a save can rebuild the lists without asking the SiteService again
+		m_tabSites = mySites;
+		m_tabSitesLoaded = System.currentTimeMillis();
+
+		loadTabItems(prefOrder, prefExclude);
+
+		// release lock
+		m_preferencesService.cancel(m_edit);
+		return m_TabOutcome;
+	}
+
+	/**
+	 * Build prefOrderItems and prefExcludeItems from the sites last read by processActionEdit().
+	 * 
+	 * @param prefOrder
+	 *        The saved "order" site ids.
+	 * @param prefExclude
+	 *        The saved "exclude" site ids.
+	 */
+	private void loadTabItems(List<String> prefOrder, List<String> prefExclude)
+	{
 		// create excluded and order list of Sites and add balance mySites to excluded Site list for display in Form
-		List ordered = new Vector();
-		List excluded = new Vector();
-		for (Iterator i = prefOrder.iterator(); i.hasNext();)
-		{
-			String id = (String) i.next();
-			// find this site in the mySites list
-			int pos = indexOf(id, mySites);
-			if (pos != -1)
-			{
-				// move it from mySites to order
-				Site s = (Site) mySites.get(pos);
-				ordered.add(s);
-				mySites.remove(pos);
-			}
-		}
-		for (Iterator iter = prefExclude.iterator(); iter.hasNext();)
-		{
-			String element = (String) iter.next();
-			int pos = indexOf(element, mySites);
-			if (pos != -1)
-			{
-				Site s = (Site) mySites.get(pos);
-				excluded.add(s);
-				mySites.remove(pos);
-			}
-		}
-		// pick up the rest of the sites if not available with exclude and order list
-		// and add to the ordered list as when a new site is created it is displayed in header
-		ordered.addAll(mySites);
+		List<Site> ordered = new ArrayList<Site>();
+		List<Site> excluded = new ArrayList<Site>();
+		reconcileSites(m_tabSites, prefOrder, prefExclude, ordered, excluded);
 
 		// Now convert to SelectItem for display in JSF
-                String sitetablabel = getPrefTabLabel();
-		for (Iterator iter = excluded.iterator(); iter.hasNext();)
+		String sitetablabel = getPrefTabLabel();
+		prefExcludeItems = toSelectItems(excluded, sitetablabel);
+		prefOrderItems = toSelectItems(ordered, sitetablabel);
+	}
+
+	/**
+	 * Convert Sites to SelectItems for display in JSF, labelled by title or short description.
+	 * 
+	 * @param sites
+	 *        The Sites to convert.
+	 * @param sitetablabel
+	 *        The "tab:label" preference, "1" to label by title.
+	 * @return The SelectItems, in the same order as sites.
+	 */
+	private List<SelectItem> toSelectItems(List<Site> sites, String sitetablabel)
+	{
+		List<SelectItem> items = new ArrayList<SelectItem>(sites.size());
+		for (Site element : sites)
 		{
-			Site element = (Site) iter.next();
 			// some short descriptins are empty or null
 			String shortdesc = element.getShortDescription();
 			if ((shortdesc == null) || ("".equals(shortdesc))){
 			    shortdesc = element.getTitle();
 			}
 
-			SelectItem excludeItem = null;
-
 			if ("1".equals(sitetablabel)) {
-			    excludeItem = new SelectItem(element.getId(), FormattedText.makeShortenedText(element.getTitle(),null,null,null),element.getTitle());
+			    items.add(new SelectItem(element.getId(), FormattedText.makeShortenedText(element.getTitle(),null,null,null), element.getTitle()));
 			}
 			else {
-			    excludeItem = new SelectItem(element.getId(), FormattedText.makeShortenedText(shortdesc,null,null,null), shortdesc);
+			    items.add(new SelectItem(element.getId(), FormattedText.makeShortenedText(shortdesc,null,null,null), shortdesc));
 			}
-			prefExcludeItems.add(excludeItem);
 		}
+		return items;
+	}
 
-		for (Iterator iter = ordered.iterator(); iter.hasNext();)
+	/**
+	 * Reload the tab page data after a save. The lists are rebuilt from the sites already held in the bean while they are
+	 * younger than "prefs.tabs.sites.refresh" seconds; otherwise, or if they were never read, the full processActionEdit() runs.
+	 * 
+	 * @param prefOrder
+	 *        The "order" site ids just saved.
+	 * @param prefExclude
+	 *        The "exclude" site ids just saved.
+	 */
+	private void refreshTabItems(List<String> prefOrder, List<String> prefExclude)
+	{
+		if (m_tabSites == null || System.currentTimeMillis() - m_tabSitesLoaded > m_tabSitesRefresh)
 		{
-			Site element = (Site) iter.next();
-
-			// some short descriptins are empty or null
-			String shortdesc = element.getShortDescription();
-			if ((shortdesc == null) || ("".equals(shortdesc))){
-			    shortdesc = element.getTitle();
-			}
+			processActionEdit();
+			return;
+		}
 
-			SelectItem orderItem = null;
-			if ("1".equals(sitetablabel)) {
-			    orderItem = new SelectItem(element.getId(), FormattedText.makeShortenedText(element.getTitle(),null,null,null), element.getTitle());
-			}
-			else {
-			    orderItem = new SelectItem(element.getId(), FormattedText.makeShortenedText(shortdesc,null,null,null), shortdesc);
-			}
+		LOG.debug("refreshTabItems()");
+		tabUpdated = false;
+		refreshMode = false;
+		loadTabItems(prefOrder, prefExclude);
+	}
 
-			prefOrderItems.add(orderItem);
+	/**
+	 * @return The site ids of the given SelectItems, in order.
+	 */
+	private List<String> toSiteIds(List items)
+	{
+		List<String> ids = new ArrayList<String>(items.size());
+		for (Iterator i = items.iterator(); i.hasNext();)
+		{
+			ids.add((String) ((SelectItem) i.next()).getValue());
 		}
+		return ids;
+	}
 
-		// release lock
-		m_preferencesService.cancel(m_edit);
-		return m_TabOutcome;
+	/**
+	 * @return The site ids in a ", " separated list as posted by the drag and drop page, or an empty list.
+	 */
+	private List<String> toSiteIds(String ids)
+	{
+		if (ids == null || ids.length() == 0)
+		{
+			return new ArrayList<String>();
+		}
+		return Arrays.asList(ids.split(", "));
 	}
 
 	/**
@@ -1236,41 +1313,15 @@ public class UserPrefsTool
 	{
 		LOG.debug("processActionSave()");
 
-		setUserEditingOn();
-		// Remove existing property
-		ResourcePropertiesEdit props = m_edit.getPropertiesEdit(CHARON_PREFS);
-		props.removeProperty("exclude");
-		props.removeProperty("order");
-		// Commit to remove from database, for next set of value storing
-		m_preferencesService.commit(m_edit);
-
-		m_stuff = new Vector();
-		String oparts = "";
-		String eparts = "";
-		for (int i = 0; i < prefExcludeItems.size(); i++)
-		{
-			SelectItem item = (SelectItem) prefExcludeItems.get(i);
-			String evalue = (String) item.getValue();
-			eparts += evalue + ", ";
-		}
-		for (int i = 0; i < prefOrderItems.size(); i++)
-		{
-			SelectItem item = (SelectItem) prefOrderItems.get(i);
-			String value = (String) item.getValue();
-			oparts += value + ", ";
-		}
-		// add property name and value for saving
-		m_stuff.add(new KeyNameValue(CHARON_PREFS, "exclude", eparts, true));
-		m_stuff.add(new KeyNameValue(CHARON_PREFS, "order", oparts, true));
-		m_stuff.add(new KeyNameValue(CHARON_PREFS, "tabs", prefTabCount, false));
-		m_stuff.add(new KeyNameValue(CHARON_PREFS, "tab:label", prefTabLabel, false));
+		List<String> savedOrder = toSiteIds(prefOrderItems);
+		List<String> savedExclude = toSiteIds(prefExcludeItems);
 
 		// save
-		saveEdit();
+		saveTabPrefs(savedOrder, savedExclude, getTabCount(), getPrefTabLabel());
 		// release lock and clear session variables
 		cancelEdit();
 		// To stay on the same page - load the page data
-		processActionEdit();
+		refreshTabItems(savedOrder, savedExclude);
 		tabUpdated = true; // set for display of text message on JSP
 
 		m_reloadTop = Boolean.TRUE;
@@ -1292,14 +1343,14 @@ public class UserPrefsTool
 
 			// SAK-23895 , we need to save the tab label preference even though there is no drag-drop actions. 
 			// Lydia: I hate to duplicate updatePrefs() code here. Can we call something like updatePrefs(null, null, null)? 
-			m_stuff = new Vector();
-			m_stuff.add(new KeyNameValue(CHARON_PREFS, "tab:label", prefTabLabel, false));
+			List<String> savedOrder = toSiteIds(prefOrderItems);
+			List<String> savedExclude = toSiteIds(prefExcludeItems);
 			// save
-			saveEdit();
+			saveTabPrefs(null, null, null, getPrefTabLabel());
 			// release lock and clear session variables
 			cancelEdit();
 			// To stay on the same page - load the page data
-			processActionEdit();
+			refreshTabItems(savedOrder, savedExclude);
 			tabUpdated = true; // set for display of text message on JSP
 			m_reloadTop = Boolean.TRUE;
 
@@ -1334,29 +1385,16 @@ public class UserPrefsTool
 
 	private void updatePrefs(String order, String excludes, int tabcount) 
 	{
-		setUserEditingOn();
-		// Remove existing property
-		ResourcePropertiesEdit props = m_edit.getPropertiesEdit(CHARON_PREFS);
-		props.removeProperty("exclude");
-		props.removeProperty("order");
-		// Commit to remove from database, for next set of value storing
-		m_preferencesService.commit(m_edit);
-
-		m_stuff = new Vector();
-		// add property name and value for saving
-		if ( order != null && order.length() > 0 ) 
-			m_stuff.add(new KeyNameValue(CHARON_PREFS, "order", order, true));
-		if ( excludes != null && excludes.length() > 0 ) 
-			m_stuff.add(new KeyNameValue(CHARON_PREFS, "exclude", excludes, true));
-		m_stuff.add(new KeyNameValue(CHARON_PREFS, "tabs",  String.valueOf(tabcount), false));
-		m_stuff.add(new KeyNameValue(CHARON_PREFS, "tab:label", prefTabLabel, false));
+		List<String> savedOrder = toSiteIds(order);
+		List<String> savedExclude = toSiteIds(excludes);
 
 		// save
-		saveEdit();
+		saveTabPrefs(savedOrder, savedExclude, String.valueOf(tabcount), getPrefTabLabel());
 		// release lock and clear session variables
 		cancelEdit();
 		// To stay on the same page - load the page data
-		processActionEdit();
+		prefTabCount = String.valueOf(tabcount);
+		refreshTabItems(savedOrder, savedExclude);
 		tabUpdated = true; // set for display of text message on JSP
 
 		m_reloadTop = Boolean.TRUE;
@@ -1575,6 +1613,88 @@ public class UserPrefsTool
 		m_preferencesService.commit(m_edit);
 	}
 
+	/**
+	 * Write the tab preferences in a single edit and commit. Only the values that differ from the stored ones are touched, and when none
+	 * differ the edit is cancelled rather than committed.
+	 * 
+	 * @param order
+	 *        The "order" site ids, or null to leave them as they are.
+	 * @param exclude
+	 *        The "exclude" site ids, or null to leave them as they are.
+	 * @param tabs
+	 *        The "tabs" count, or null to leave it as it is.
+	 * @param label
+	 *        The "tab:label" choice, or null to leave it as it is.
+	 * @return true if the preferences were committed, false if nothing changed or no edit could be had.
+	 */
+	protected boolean saveTabPrefs(List<String> order, List<String> exclude, String tabs, String label)
+	{
+		LOG.debug("saveTabPrefs()");
+
+		setUserEditingOn();
+		if (m_edit == null) return false;
+
+		ResourcePropertiesEdit props = m_edit.getPropertiesEdit(CHARON_PREFS);
+		boolean changed = false;
+		changed |= updateListProperty(props, ORDER_SITE_LISTS, order);
+		changed |= updateListProperty(props, EXCLUDE_SITE_LISTS, exclude);
+		changed |= updateProperty(props, "tabs", tabs);
+		changed |= updateProperty(props, "tab:label", label);
+
+		if (changed)
+		{
+			// save the preferences, release the edit
+			m_preferencesService.commit(m_edit);
+		}
+		else
+		{
+			// release lock
+			m_preferencesService.cancel(m_edit);
+		}
+		m_edit = null;
+		return changed;
+	}
+
+	/**
+	 * Replace a list property if the new values differ from the stored ones; an empty list removes the property.
+	 * 
+	 * @return true if the property was changed.
+	 */
+	private boolean updateListProperty(ResourcePropertiesEdit props, String name, List<String> values)
+	{
+		if (values == null) return false;
+
+		List current = props.getPropertyList(name);
+		if (current == null ? values.isEmpty() : current.equals(values)) return false;
+
+		props.removeProperty(name);
+		for (String value : values)
+		{
+			props.addPropertyToList(name, value);
+		}
+		return true;
+	}
+
+	/**
+	 * Replace a single valued property if the new value differs from the stored one; an empty value removes the property.
+	 * 
+	 * @return true if the property was changed.
+	 */
+	private boolean updateProperty(ResourcePropertiesEdit props, String name, String value)
+	{
+		if (value == null) return false;
+
+		String current = props.getProperty(name);
+		if (value.equals("") ? current == null : value.equals(current)) return false;
+
+		props.removeProperty(name);
+		if (!value.equals(""))
+		{
+			props.addProperty(name, value);
+		}
+		return true;
+	}
+
 	/**
 	 * Check String has value, not null
 	 * 
@@ -1597,32 +1717,50 @@ public class UserPrefsTool
 		}
 	}
 
-	// Copied from CheronPortal.java
 	/**
-	 * Find the site in the list that has this id - return the position. *
+	 * Split the user's sites into the ordered and excluded lists using the saved "order" and "exclude" preferences. The sites are indexed by id
+	 * once, so each saved id is resolved with a single lookup rather than a scan of the site list. Sites named in neither preference are appended
+	 * to the ordered list, keeping their original (title) order, as a newly joined site shows up in the header.
 	 * 
-	 * @param value
-	 *        The site id to find.
-	 * @param siteList
-	 *        The list of Site objects.
-	 * @return The index position in siteList of the site with site id = value, or -1 if not found.
+	 * @param mySites
+	 *        The list of Site objects the user can access.
+	 * @param prefOrder
+	 *        The saved "order" site ids.
+	 * @param prefExclude
+	 *        The saved "exclude" site ids.
+	 * @param ordered
+	 *        Receives the Sites to show as tabs, in order.
+	 * @param excluded
+	 *        Receives the hidden Sites.
 	 */
-	protected int indexOf(String value, List siteList)
+	protected void reconcileSites(List<Site> mySites, List<String> prefOrder, List<String> prefExclude, List<Site> ordered, List<Site> excluded)
 	{
-		if (LOG.isDebugEnabled())
+		Map<String, Site> remaining = new LinkedHashMap<String, Site>(mySites.size() * 2);
+		for (Site site : mySites)
 		{
-			LOG.debug("indexOf(String " + value + ", List " + siteList + ")");
+			remaining.put(site.getId(), site);
 		}
 
-		for (int i = 0; i < siteList.size(); i++)
+		// an id saved in both lists stays in the order list, as it always has
+		for (String id : prefOrder)
 		{
-			Site site = (Site) siteList.get(i);
-			if (site.getId().equals(value))
+			Site s = remaining.remove(id);
+			if (s != null)
 			{
-				return i;
+				ordered.add(s);
+			}
+		}
+		for (String id : prefExclude)
+		{
+			Site s = remaining.remove(id);
+			if (s != null)
+			{
+				excluded.add(s);
 			}
 		}
-		return -1;
+
+		// pick up the rest of the sites if not available with exclude and order list
+		ordered.addAll(remaining.values());
 	}
 
 	// ////////////////////////////////// NOTIFICATION ACTIONS ////////////////////////////////
@@ -1787,8 +1925,13 @@ public class UserPrefsTool
 		ResourceLoader rl = new ResourceLoader();
 		Locale loc = rl.setContextLocale(null);		
 
-		// reset notification items with the locale
-		initRegisteredNotificationItems();
+		// the site type names are localized, so group the sites again
+		m_siteTypeDisplays = null;
+
+		// reset notification items with the locale, if they have been built yet
+		if (m_notificationItemsLoaded) {
+			initRegisteredNotificationItems();
+		}
 
 		locUpdated = true; // set for display of text massage
 		return "locale";
@@ -2018,7 +2161,7 @@ public class UserPrefsTool
 	    if ( prefTabLabel != null )
 	        return prefTabLabel;
 
-	    Preferences prefs = (PreferencesEdit) m_preferencesService.getPreferences(getUserId());
+	    Preferences prefs = getPreferences();
 	    ResourceProperties props = prefs.getProperties(CHARON_PREFS);
 	    prefTabLabel = props.getProperty("tab:label");
 
@@ -2134,7 +2277,7 @@ public class UserPrefsTool
 		refreshUpdated = false;
 		if (!hasValue(selectedRefreshItem))
 		{
-			Preferences prefs = (PreferencesEdit) m_preferencesService.getPreferences(getUserId());
+			Preferences prefs = getPreferences();
 			// String a = getStringPref(PortalService.SERVICE_NAME, "refresh", prefs);
 			// if (hasValue(a))
 			// {
@@ -2235,18 +2378,26 @@ public class UserPrefsTool
 	
 	public List<DecoratedNotificationPreference> getRegisteredNotificationItems() {
 		LOG.debug("getRegisteredNotificationItems()");
+		if (!m_notificationItemsLoaded) {
+			initRegisteredNotificationItems();
+		}
 		return m_registereddNotificationItems;
 	}
 	
 	public void initRegisteredNotificationItems() {
 		LOG.debug("initRegisteredNotificationItems()");
+		initServices();
+		m_notificationItemsLoaded = true;
 		m_registereddNotificationItems.clear();
+
+		// one snapshot of the preferences serves every registration
+		Preferences prefs = getPreferences();
 		for (UserNotificationPreferencesRegistration upr : m_userNotificationPreferencesRegistrationService.getRegisteredItems()) {
 
-			m_registereddNotificationItems.addAll(getRegisteredNotificationItems(upr));
+			m_registereddNotificationItems.addAll(getRegisteredNotificationItems(upr, prefs));
 		}
 		
-		processRegisteredNotificationItems();
+		processRegisteredNotificationItems(prefs);
 	}
 	
 	/**
@@ -2323,9 +2474,16 @@ public class UserPrefsTool
 	
 	/**
 	 * Determine the sorting and if any should be hidden from view
-	 * @param decoItems
 	 */
 	private void processRegisteredNotificationItems() {
+		processRegisteredNotificationItems(getPreferences());
+	}
+
+	/**
+	 * Determine the sorting and if any should be hidden from view
+	 * @param prefs the user's preferences
+	 */
+	private void processRegisteredNotificationItems(Preferences prefs) {
 		
 		Map<String, Integer> toolOrderMap = new HashMap<String, Integer>();
 		String[] toolOrder = ServerConfigurationService.getStrings("prefs.tool.order");
@@ -2337,7 +2495,7 @@ public class UserPrefsTool
 		toolOrderMap = stringArrayToMap(toolOrder);
 		hiddenToolMap = stringArrayToMap(parsedHidden);
 		
-		Preferences prefs = m_preferencesService.getPreferences(getUserId());
+		ResourceProperties expandProps = prefs.getProperties(PREFS_EXPAND);
 		
 		for (DecoratedNotificationPreference dnp : m_registereddNotificationItems) {
 			String toolId = dnp.getUserNotificationPreferencesRegistration().getToolId();
@@ -2348,7 +2506,6 @@ public class UserPrefsTool
 				dnp.setHidden(true);
 			}
 			
-			ResourceProperties expandProps = prefs.getProperties(PREFS_EXPAND);
 			if (expandProps != null) {
 				String expandProp = expandProps.getProperty(dnp.key);
 				if (expandProp != null) {
@@ -2366,9 +2523,18 @@ public class UserPrefsTool
 	 * @return
 	 */
 	public List<DecoratedNotificationPreference> getRegisteredNotificationItems(UserNotificationPreferencesRegistration upr) {
-		LOG.debug("getRegisteredNotificationItems(UserNotificationPreferencesRegistration)");
+		return getRegisteredNotificationItems(upr, getPreferences());
+	}
+
+	/**
+	 * Get the current preference settings for this registration item
+	 * @param upr
+	 * @param prefs the user's preferences
+	 * @return
+	 */
+	private List<DecoratedNotificationPreference> getRegisteredNotificationItems(UserNotificationPreferencesRegistration upr, Preferences prefs) {
+		LOG.debug("getRegisteredNotificationItems(UserNotificationPreferencesRegistration, Preferences)");
 		List<DecoratedNotificationPreference> selNotiItems = new ArrayList<DecoratedNotificationPreference>();
-		Preferences prefs = m_preferencesService.getPreferences(getUserId());
 		List<SiteOverrideBean> siteOverrides = new ArrayList<SiteOverrideBean>();
 		if (upr.isOverrideBySite()) {
 			siteOverrides = 
@@ -2426,6 +2592,66 @@ public class UserPrefsTool
 		return null;
 	}
 	
+	/**
+	 * Group the notification sites by site type / term and work out the type order and which types start expanded. This only depends on
+	 * the sites and the configuration, so it is done once per session; initSiteList() then only filters by tool.
+	 */
+	private void initSiteGrouping() {
+		if (m_siteTypeDisplays != null) {
+			return;
+		}
+		LOG.debug("initSiteGrouping()");
+
+		Map<String, String> siteTypeDisplays = new HashMap<String, String>();
+		for (Site site : getNotificationSites()) {
+			siteTypeDisplays.put(site.getId(), getSiteTypeDisplay(site));
+		}
+		Set<String> typeDisplays = new HashSet<String>(siteTypeDisplays.values());
+
+		String expandTypeString = ServerConfigurationService.getString("prefs.type.autoExpanded", "portfolio");
+
+		String[] sortedTypeList = ServerConfigurationService.getStrings("prefs.type.order");
+		if(sortedTypeList == null) {
+			sortedTypeList = new String[] {"portfolio","course","project"};
+		}
+		String[] termOrder = ServerConfigurationService.getStrings("portal.term.order");
+		List<String> myTermOrder = new ArrayList<String>();
+		if (termOrder != null)
+		{
+			for (int i = 0; i < termOrder.length; i++)
+			{
+				if (typeDisplays.contains(termOrder[i]) && !"".equals(termOrder[i]))
+				{
+					myTermOrder.add(termOrder[i]);
+				}
+			}
+		}
+
+		List<String> courseTermOrder = new ArrayList<String>();
+		int count = 0;
+		m_sortedTypes.clear();
+		for (int i = 0; i < sortedTypeList.length; i++) {
+			if ("course".equalsIgnoreCase(sortedTypeList[i])) {
+				for (String value : myTermOrder) {
+					m_sortedTypes.put(value, count);
+					count++;
+				}
+				courseTermOrder = myTermOrder;
+			}
+			else {
+				String value = sortedTypeList[i];
+				if (value != null && !value.equals("")) {
+					m_sortedTypes.put(value, count);
+					count++;
+				}
+			}
+		}
+
+		m_courseTermOrder = courseTermOrder;
+		m_expandedTypes = new HashSet<String>(Arrays.asList(expandTypeString.split(",")));
+		m_siteTypeDisplays = siteTypeDisplays;
+	}
+
 	/**
 	 * Get the display name for the site type in question.  
 	 * If a course site, it will pull the info from the "term" site property
@@ -2584,72 +2810,35 @@ public class UserPrefsTool
 		 * Initializing the site structures
 		 */
 		private void initSiteList() {
+			initSiteGrouping();
+
 			Map<String, List<DecoratedSiteBean>> siteTypeMap = new HashMap<String, List<DecoratedSiteBean>>();
 			Map<String, String> siteTypeKeyMap = new HashMap<String, String>();
 			
-			List<String> selectedSites = getSelectedNotificationItemIds(this);
-			for (Site site : m_sites) {
+			Set<String> selectedSites = new HashSet<String>(getSelectedNotificationItemIds(this));
+			for (Site site : getNotificationSites()) {
 				if (site.getToolForCommonId(userNotificationPreferencesRegistration.getToolId()) != null) {
-					String typeDisplay = getSiteTypeDisplay(site);
+					String typeDisplay = m_siteTypeDisplays.get(site.getId());
 					List<DecoratedSiteBean> sitesList = siteTypeMap.get(typeDisplay);
 					if (sitesList == null) {
 						sitesList = new ArrayList<DecoratedSiteBean>();
+						siteTypeMap.put(typeDisplay, sitesList);
 					}
 					boolean selected = selectedSites.contains(site.getId());
 					sitesList.add(new DecoratedSiteBean(site, selected));
-					siteTypeMap.put(typeDisplay, sitesList);
 					siteTypeKeyMap.put(typeDisplay, site.getType());
 				}
 			}
 			
-			String expandTypeString = ServerConfigurationService.getString("prefs.type.autoExpanded", "portfolio");
-			
-			String[] sortedTypeList = ServerConfigurationService.getStrings("prefs.type.order");
-            if(sortedTypeList == null) {
-                sortedTypeList = new String[] {"portfolio","course","project"};
-            }
-			String[] termOrder = ServerConfigurationService.getStrings("portal.term.order");
-			List<String> myTermOrder = new ArrayList<String>();
-					
-			
-			if (termOrder != null)
-			{
-				for (int i = 0; i < termOrder.length; i++)
-				{
-
-					if (siteTypeMap.containsKey(termOrder[i]))
-					{
-						myTermOrder.add(termOrder[i]);
-					}
-				}
-			}
-
-			int count = 0;
-			for (int i = 0; i < sortedTypeList.length; i++) {
-				
-				if ("course".equalsIgnoreCase(sortedTypeList[i])) {
-					boolean firstCourse = true;
-					for (String value : myTermOrder) {
-						if (value != null && !value.equals("")) {
-							m_sortedTypes.put(value, count);
-							count++;
-							if (firstCourse) {
-								expandTypeString = expandTypeString.concat("," + value);
-								firstCourse=false;
-							}
-						}
-					}
-				}
-				else {
-					String value = sortedTypeList[i];
-					if (value != null && !value.equals("")) {
-						m_sortedTypes.put(value, count);
-						count++;
-					}
+			// the first term in the term order that this tool has sites in is expanded too
+			Set<String> expandedTypes = m_expandedTypes;
+			for (String term : m_courseTermOrder) {
+				if (siteTypeMap.containsKey(term)) {
+					expandedTypes = new HashSet<String>(m_expandedTypes);
+					expandedTypes.add(term);
+					break;
 				}
 			}
-			//List<DecoratedSiteTypeBean> siteOverrideList = new ArrayList<DecoratedSiteTypeBean>();
-			List<String> expandedTypes = Arrays.asList(expandTypeString.split(","));
 			siteList = getFullSiteOverrideList(siteTypeMap, siteTypeKeyMap, expandedTypes);
 		}
 		
@@ -2658,7 +2847,7 @@ public class UserPrefsTool
 		 * @return
 		 */
 		private List<DecoratedSiteTypeBean> getFullSiteOverrideList(Map<String, List<DecoratedSiteBean>> siteTypeMap, 
-				Map<String, String> siteTypeKeyMap, List<String> expandedTypes) {
+				Map<String, String> siteTypeKeyMap, Set<String> expandedTypes) {
 			LOG.debug("getFullSiteOverrideList()");
 			List<DecoratedSiteTypeBean> list = new ArrayList<DecoratedSiteTypeBean>();
 			
@@ -70,6 +70,7 @@
 	 	<%--  Message if Show All or Hide All has been clicked --%>
 	 	<f:verbatim><div></f:verbatim>
 	 	<h:outputText value="#{privacyBean.changeAllMsg}" styleClass="success" rendered="#{privacyBean.allChanged}" />
+	 	<h:outputText value="#{privacyBean.changeAllFailedMsg}" styleClass="alertMessage" rendered="#{privacyBean.changeAllFailedMsg != null}" />
 		<f:verbatim></div></f:verbatim>
 			  
 	<f:verbatim><br /><h4></f:verbatim>
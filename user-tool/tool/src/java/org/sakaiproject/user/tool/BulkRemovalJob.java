@@ -0,0 +1,331 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.user.tool;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.sakaiproject.component.cover.ServerConfigurationService;
+import org.sakaiproject.tool.api.Session;
+import org.sakaiproject.tool.cover.SessionManager;
+import org.sakaiproject.user.api.UserNotDefinedException;
+import org.sakaiproject.user.cover.UserDirectoryService;
+import org.sakaiproject.util.ResourceLoader;
+
+/**
+ * <p>
+ * BulkRemovalJob deletes a list of users, by eid, in the background. The users are taken one at a time, each through a UserRemoval (so their
+ * realms are still done in parallel), with a pause of user.remove.bulk.throttle ms between users to keep the load on the database down. The job
+ * lives in a registry outside the HTTP request, keeps an outcome for every eid and writes each one to the log, and can be stopped part way.
+ * </p>
+ */
+public class BulkRemovalJob
+{
+	/** Our log (commons). */
+	private static final Log LOG = LogFactory.getLog(BulkRemovalJob.class);
+
+	private static ResourceLoader rb = new ResourceLoader("admin");
+
+	/** How long a finished job is kept for its owner to look at, in ms. */
+	private static final long RETAIN_FINISHED = 60L * 60L * 1000L;
+
+	/** The pause between users, in ms. */
+	private static final long THROTTLE = Math.max(0, ServerConfigurationService.getInt("user.remove.bulk.throttle", 250));
+
+	/** The jobs, by id. */
+	private static final ConcurrentMap<String, BulkRemovalJob> JOBS = new ConcurrentHashMap<String, BulkRemovalJob>();
+
+	/**
+	 * The outcome for one eid.
+	 */
+	public static class Result
+	{
+		public static final String PENDING = "pending";
+		public static final String REMOVED = "removed";
+		public static final String NOT_FOUND = "notfound";
+		public static final String FAILED = "failed";
+
+		private final String eid;
+		private volatile String status = PENDING;
+		private volatile String message;
+
+		Result(String eid)
+		{
+			this.eid = eid;
+		}
+
+		public String getEid()
+		{
+			return eid;
+		}
+
+		public String getStatus()
+		{
+			return status;
+		}
+
+		public String getMessage()
+		{
+			return message;
+		}
+	}
+
+	private final String id;
+	private final List<Result> results;
+	private final boolean unenroll;
+	private final Session session;
+
+	private final AtomicInteger removed = new AtomicInteger();
+	private final AtomicInteger notFound = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+
+	private volatile boolean running = false;
+	private volatile boolean stopped = false;
+	private volatile long finished = 0;
+
+	private BulkRemovalJob(List<String> eids, boolean unenroll, Session session)
+	{
+		this.id = UUID.randomUUID().toString();
+		this.unenroll = unenroll;
+		this.session = session;
+		this.results = new ArrayList<Result>(eids.size());
+		for (String eid : eids)
+		{
+			results.add(new Result(eid));
+		}
+	}
+
+	/**
+	 * Create a job for these users and start it, acting as the current session's user.
+	 *
+	 * @param eids
+	 *        The eids of the users to delete.
+	 * @param unenroll
+	 *        true to take each user out of their realms first.
+	 * @return The running job.
+	 */
+	public static BulkRemovalJob start(List<String> eids, boolean unenroll)
+	{
+		purge();
+
+		final BulkRemovalJob job = new BulkRemovalJob(eids, unenroll, SessionManager.getCurrentSession());
+		JOBS.put(job.getId(), job);
+		job.running = true;
+
+		Thread worker = new Thread(UserToolWorkers.asUser(job.session, new Runnable()
+		{
+			public void run()
+			{
+				job.run();
+			}
+		}), "BulkRemovalJob-" + job.getId());
+		worker.setDaemon(true);
+		worker.start();
+
+		LOG.info("start(): bulk removal " + job.getId() + " of " + eids.size() + " users by " + job.session.getUserEid());
+		return job;
+	}
+
+	/**
+	 * @param id
+	 *        The job id.
+	 * @return The job, or null if there is none (it finished long ago, or ran on another server).
+	 */
+	public static BulkRemovalJob get(String id)
+	{
+		return (id == null) ? null : JOBS.get(id);
+	}
+
+	/**
+	 * Forget a job, once its owner is done with it. A job still running carries on and is purged later.
+	 *
+	 * @param id
+	 *        The job id.
+	 */
+	public static void remove(String id)
+	{
+		BulkRemovalJob job = get(id);
+		if (job != null && !job.isRunning())
+		{
+			JOBS.remove(id);
+		}
+	}
+
+	/**
+	 * Drop the jobs that finished a while ago and were never collected.
+	 */
+	private static void purge()
+	{
+		long cutoff = System.currentTimeMillis() - RETAIN_FINISHED;
+		for (Iterator<BulkRemovalJob> i = JOBS.values().iterator(); i.hasNext();)
+		{
+			BulkRemovalJob job = i.next();
+			if (!job.isRunning() && job.finished > 0 && job.finished < cutoff)
+			{
+				i.remove();
+			}
+		}
+	}
+
+	private void run()
+	{
+		try
+		{
+			for (Result result : results)
+			{
+				if (stopped) break;
+
+				removeUser(result);
+
+				if (THROTTLE > 0)
+				{
+					Thread.sleep(THROTTLE);
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			LOG.warn("run(): bulk removal " + id + " interrupted");
+		}
+		catch (Throwable t)
+		{
+			LOG.warn("run(): bulk removal " + id + " failed: " + t.getClass() + ":" + t.getMessage());
+		}
+		finally
+		{
+			running = false;
+			finished = System.currentTimeMillis();
+			LOG.info("run(): bulk removal " + id + " finished: " + removed.get() + " removed, " + notFound.get() + " not found, " + failed.get()
+					+ " failed, " + getPending() + " pending");
+		}
+	}
+
+	private void removeUser(Result result)
+	{
+		String userId = null;
+		try
+		{
+			userId = UserDirectoryService.getUserId(result.eid);
+		}
+		catch (UserNotDefinedException e)
+		{
+			result.status = Result.NOT_FOUND;
+			notFound.incrementAndGet();
+			LOG.info("removeUser(): bulk removal " + id + ": " + result.eid + " not found");
+			return;
+		}
+
+		// this thread is already in the background, so wait for as long as it takes
+		UserRemoval removal = UserRemoval.start(userId, result.eid, unenroll);
+		removal.await(Long.MAX_VALUE);
+
+		StringBuilder message = new StringBuilder();
+		for (String realm : removal.getFailures().keySet())
+		{
+			if (message.length() > 0) message.append("; ");
+			message.append(rb.getFormattedMessage("useact.couldnot", result.eid, realm));
+		}
+
+		if (removal.isRemoved())
+		{
+			result.status = Result.REMOVED;
+			removed.incrementAndGet();
+		}
+		else
+		{
+			if (message.length() > 0) message.append("; ");
+			message.append(rb.getFormattedMessage("useact.youdonot2", new Object[] { result.eid }));
+			result.status = Result.FAILED;
+			failed.incrementAndGet();
+		}
+		result.message = (message.length() > 0) ? message.toString() : null;
+		LOG.info("removeUser(): bulk removal " + id + ": " + result.eid + " " + result.status + ((result.message == null) ? "" : ": " + result.message));
+	}
+
+	/**
+	 * Stop after the user being removed now.
+	 */
+	public void stop()
+	{
+		stopped = true;
+	}
+
+	public String getId()
+	{
+		return id;
+	}
+
+	public int getTotal()
+	{
+		return results.size();
+	}
+
+	public int getRemoved()
+	{
+		return removed.get();
+	}
+
+	public int getNotFound()
+	{
+		return notFound.get();
+	}
+
+	public int getFailed()
+	{
+		return failed.get();
+	}
+
+	public int getPending()
+	{
+		return results.size() - removed.get() - notFound.get() - failed.get();
+	}
+
+	public boolean isRunning()
+	{
+		return running;
+	}
+
+	public boolean isStopped()
+	{
+		return stopped;
+	}
+
+	/**
+	 * @return The users that were not removed, or only partly, in list order.
+	 */
+	public List<Result> getProblems()
+	{
+		List<Result> rv = new ArrayList<Result>();
+		for (Result result : results)
+		{
+			if (Result.FAILED.equals(result.status) || result.message != null) rv.add(result);
+		}
+		return rv;
+	}
+}
@@ -0,0 +1,195 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.user.tool;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.sakaiproject.entity.api.ResourceProperties;
+import org.sakaiproject.util.BaseResourcePropertiesEdit;
+
+/**
+ * <p>
+ * ImportedUserBinder maps the rows of an import file onto ImportedUser objects. It is compiled once from the header row into a setter for each
+ * column position, so binding a row is a walk along the cells with no comparisons of column names. Any column that is not one of the main user
+ * attributes is stored as a user property.
+ * </p>
+ */
+public class ImportedUserBinder
+{
+	/**
+	 * The main user attributes, by the column heading they are read from.
+	 */
+	private enum Column
+	{
+		EID("user id")
+		{
+			void set(ImportedUser u, String value)
+			{
+				u.setEid(value);
+			}
+		},
+		FIRST_NAME("first name")
+		{
+			void set(ImportedUser u, String value)
+			{
+				u.setFirstName(value);
+			}
+		},
+		LAST_NAME("last name")
+		{
+			void set(ImportedUser u, String value)
+			{
+				u.setLastName(value);
+			}
+		},
+		EMAIL("email")
+		{
+			void set(ImportedUser u, String value)
+			{
+				u.setEmail(value);
+			}
+		},
+		PASSWORD("password")
+		{
+			void set(ImportedUser u, String value)
+			{
+				u.setPassword(value);
+			}
+		},
+		TYPE("type")
+		{
+			void set(ImportedUser u, String value)
+			{
+				u.setType(value);
+			}
+		};
+
+		private static final Map<String, Column> BY_HEADING = new HashMap<String, Column>();
+		static
+		{
+			for (Column column : values())
+			{
+				BY_HEADING.put(column.heading, column);
+			}
+		}
+
+		private final String heading;
+
+		private Column(String heading)
+		{
+			this.heading = heading;
+		}
+
+		abstract void set(ImportedUser u, String value);
+	}
+
+	/** The setter for each column, null for the property columns. */
+	private final Column[] columns;
+
+	/** The property name for each column, null for the main attributes. */
+	private final String[] properties;
+
+	private final boolean hasProperties;
+
+	private final boolean hasEid;
+
+	private ImportedUserBinder(Column[] columns, String[] properties)
+	{
+		this.columns = columns;
+		this.properties = properties;
+
+		boolean hasProperties = false;
+		boolean hasEid = false;
+		for (int i = 0; i < columns.length; i++)
+		{
+			if (columns[i] == null) hasProperties = true;
+			if (columns[i] == Column.EID) hasEid = true;
+		}
+		this.hasProperties = hasProperties;
+		this.hasEid = hasEid;
+	}
+
+	/**
+	 * Compile the binding for a file from its header row.
+	 *
+	 * @param header
+	 *        The already split header row.
+	 * @return The binder for the rest of the rows.
+	 */
+	public static ImportedUserBinder compile(String[] header)
+	{
+		Column[] columns = new Column[header.length];
+		String[] properties = new String[header.length];
+		for (int i = 0; i < header.length; i++)
+		{
+			columns[i] = Column.BY_HEADING.get(header[i]);
+			if (columns[i] == null)
+			{
+				properties[i] = header[i];
+			}
+		}
+
+		return new ImportedUserBinder(columns, properties);
+	}
+
+	/**
+	 * @return true if the file has a user id column, without which no user can be imported.
+	 */
+	public boolean hasEid()
+	{
+		return hasEid;
+	}
+
+	/**
+	 * Bind a row. Cells missing from the end of a short row are left unset.
+	 *
+	 * @param line
+	 *        The already split row.
+	 * @return The user for the row.
+	 */
+	public ImportedUser bind(String[] line)
+	{
+		ImportedUser u = new ImportedUser();
+		ResourceProperties p = hasProperties ? new BaseResourcePropertiesEdit() : null;
+
+		int length = Math.min(line.length, columns.length);
+		for (int i = 0; i < length; i++)
+		{
+			Column column = columns[i];
+			if (column != null)
+			{
+				column.set(u, line[i]);
+			}
+			else if (StringUtils.isNotBlank(line[i]))
+			{
+				// only add if not blank
+				p.addProperty(properties[i], line[i]);
+			}
+		}
+
+		u.setProperties(p);
+
+		return u;
+	}
+}
@@ -0,0 +1,546 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.user.tool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.sakaiproject.component.cover.ServerConfigurationService;
+import org.sakaiproject.entity.api.ResourceProperties;
+import org.sakaiproject.util.BaseResourcePropertiesEdit;
+
+import au.com.bytecode.opencsv.CSVReader;
+import au.com.bytecode.opencsv.CSVWriter;
+
+/**
+ * <p>
+ * ImportedUserFile holds the users parsed from an import file in a temporary spill file on local disk, rather than in the session. Only the
+ * file name, the row count, where each block of rows starts and the reports for the rows that failed validation are kept here, so it is small
+ * enough to sit in the session state. The rows are
+ * read back a block at a time, either for the preview or by the UserImportJob that creates them.
+ * </p>
+ * <p>
+ * The spill files are kept in a directory only the server can read (user.import.spill.dir, by default user-import in the Sakai home), and
+ * the passwords in them are encrypted with a key that is only held in this server's memory. A spill file left behind by an import that was
+ * never finished is removed after a day. The file and its key only exist on the server the file was uploaded to, so if the session moves to
+ * another server, or the server restarts, the file is no longer available and has to be uploaded again.
+ * </p>
+ */
+public class ImportedUserFile implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	/** Our log (commons). */
+	private static final Log LOG = LogFactory.getLog(ImportedUserFile.class);
+
+	private static final String ENCODING = "UTF-8";
+
+	/** The number of rows in a block, which is also how many rows an import worker takes at a time. */
+	public static final int BLOCK_SIZE = Math.max(1, ServerConfigurationService.getInt("user.import.batch.size", 100));
+
+	/** The columns that come before the name and value pairs of the properties. */
+	private static final int FIXED_COLUMNS = 6;
+
+	/** The column the password is in. */
+	private static final int PASSWORD_COLUMN = 4;
+
+	private static final String CIPHER = "AES/GCM/NoPadding";
+	private static final int IV_LENGTH = 12;
+	private static final int TAG_LENGTH = 128;
+
+	/** How long a spill file is kept before it is taken to be abandoned, in ms. */
+	private static final long ABANDONED = 24L * 60L * 60L * 1000L;
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private final String path;
+	private final int size;
+
+	/** The key the passwords are encrypted with, never written anywhere; lost when the session leaves this server. */
+	private final transient SecretKey key;
+
+	/** The offset in the file of the first row of each block. */
+	private final long[] blocks;
+
+	/** What the validation found wrong, by row. */
+	private SortedMap<Integer, ImportedUserValidator.Report> reports = new TreeMap<Integer, ImportedUserValidator.Report>();
+
+	private int invalid = 0;
+
+	private ImportedUserFile(String path, int size, long[] blocks, SecretKey key)
+	{
+		this.path = path;
+		this.size = size;
+		this.blocks = blocks;
+		this.key = key;
+	}
+
+	/**
+	 * @return The private directory the spill files go in, created if need be.
+	 * @throws IOException
+	 *         if the directory cannot be created.
+	 */
+	private static Path getDirectory() throws IOException
+	{
+		String configured = ServerConfigurationService.getString("user.import.spill.dir", null);
+		Path dir = StringUtils.isNotBlank(configured) ? Paths.get(configured) : Paths.get(ServerConfigurationService.getSakaiHomePath(), "user-import");
+		if (!Files.isDirectory(dir))
+		{
+			if (isPosix())
+			{
+				Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+			}
+			else
+			{
+				Files.createDirectories(dir);
+				File d = dir.toFile();
+				d.setReadable(false, false);
+				d.setReadable(true, true);
+				d.setWritable(false, false);
+				d.setWritable(true, true);
+				d.setExecutable(false, false);
+				d.setExecutable(true, true);
+			}
+		}
+		return dir;
+	}
+
+	private static boolean isPosix()
+	{
+		return FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+	}
+
+	/**
+	 * Remove the spill files that were never finished with.
+	 */
+	private static void sweep(Path dir)
+	{
+		long cutoff = System.currentTimeMillis() - ABANDONED;
+		try
+		{
+			DirectoryStream<Path> files = Files.newDirectoryStream(dir, "user-import*.csv");
+			try
+			{
+				for (Path file : files)
+				{
+					if (Files.getLastModifiedTime(file).toMillis() < cutoff)
+					{
+						Files.deleteIfExists(file);
+						LOG.info("sweep(): removed abandoned " + file);
+					}
+				}
+			}
+			finally
+			{
+				files.close();
+			}
+		}
+		catch (IOException e)
+		{
+			LOG.warn("sweep(): " + dir + ": " + e.getClass() + ":" + e.getMessage());
+		}
+	}
+
+	/**
+	 * Start a new spill file.
+	 *
+	 * @return A writer to add the users to.
+	 * @throws IOException
+	 *         if the temporary file cannot be created.
+	 */
+	public static Writer open() throws IOException
+	{
+		return new Writer();
+	}
+
+	/**
+	 * Adds users to a spill file, as they are read from the upload.
+	 */
+	public static class Writer
+	{
+		private final File file;
+		private final FileOutputStream out;
+		private final CSVWriter csv;
+		private final SecretKey key;
+		private final List<Long> blocks = new ArrayList<Long>();
+		private int size = 0;
+
+		private Writer() throws IOException
+		{
+			Path dir = getDirectory();
+			sweep(dir);
+
+			FileAttribute<?>[] attrs = new FileAttribute<?>[0];
+			if (isPosix())
+			{
+				Set<PosixFilePermission> ownerOnly = PosixFilePermissions.fromString("rw-------");
+				attrs = new FileAttribute<?>[] { PosixFilePermissions.asFileAttribute(ownerOnly) };
+			}
+			file = Files.createTempFile(dir, "user-import", ".csv", attrs).toFile();
+			if (!isPosix())
+			{
+				file.setReadable(false, false);
+				file.setReadable(true, true);
+				file.setWritable(false, false);
+				file.setWritable(true, true);
+			}
+
+			try
+			{
+				KeyGenerator generator = KeyGenerator.getInstance("AES");
+				generator.init(128, RANDOM);
+				key = generator.generateKey();
+			}
+			catch (GeneralSecurityException e)
+			{
+				file.delete();
+				throw new IOException(e);
+			}
+
+			out = new FileOutputStream(file);
+			csv = new CSVWriter(new OutputStreamWriter(out, ENCODING));
+		}
+
+		/**
+		 * @param user
+		 *        The next user from the upload.
+		 * @throws IOException
+		 *         if the user cannot be written.
+		 */
+		public void add(ImportedUser user) throws IOException
+		{
+			if (size % BLOCK_SIZE == 0)
+			{
+				// everything so far has to be on disk for the channel position to be where this row starts
+				csv.flush();
+				blocks.add(out.getChannel().position());
+			}
+
+			List<String> line = new ArrayList<String>(FIXED_COLUMNS);
+			line.addAll(Arrays.asList(user.getEid(), user.getFirstName(), user.getLastName(), user.getEmail(), encrypt(key, user.getPassword()),
+					user.getType()));
+			ResourceProperties properties = user.getProperties();
+			if (properties != null)
+			{
+				for (Iterator<String> i = properties.getPropertyNames(); i.hasNext();)
+				{
+					String name = i.next();
+					line.add(name);
+					line.add(properties.getProperty(name));
+				}
+			}
+			csv.writeNext(line.toArray(new String[line.size()]));
+			size++;
+		}
+
+		/**
+		 * @return The number of users added so far.
+		 */
+		public int size()
+		{
+			return size;
+		}
+
+		/**
+		 * Finish the file.
+		 *
+		 * @return The file, ready to be read back.
+		 * @throws IOException
+		 *         if the file cannot be written.
+		 */
+		public ImportedUserFile close() throws IOException
+		{
+			csv.close();
+
+			long[] offsets = new long[blocks.size()];
+			for (int i = 0; i < offsets.length; i++)
+			{
+				offsets[i] = blocks.get(i);
+			}
+			return new ImportedUserFile(file.getPath(), size, offsets, key);
+		}
+
+		/**
+		 * Give up on the file, and remove it.
+		 */
+		public void discard()
+		{
+			try
+			{
+				csv.close();
+			}
+			catch (IOException e)
+			{
+				// we are throwing it away anyway
+			}
+			if (!file.delete())
+			{
+				LOG.warn("discard(): could not remove " + file.getPath());
+			}
+		}
+	}
+
+	/**
+	 * @return false if the spill file can't be read here, as the session has moved to another server, the server has restarted, or the file
+	 *         has been removed.
+	 */
+	public boolean isAvailable()
+	{
+		return key != null && new File(path).isFile();
+	}
+
+	/**
+	 * @return The number of users in the file.
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return The number of blocks the users are in.
+	 */
+	public int getBlockCount()
+	{
+		return blocks.length;
+	}
+
+	/**
+	 * @param reports
+	 *        What the validation found wrong with the users, by row.
+	 */
+	public void setReports(SortedMap<Integer, ImportedUserValidator.Report> reports)
+	{
+		this.reports = reports;
+
+		invalid = 0;
+		for (ImportedUserValidator.Report report : reports.values())
+		{
+			if (!report.isValid()) invalid++;
+		}
+	}
+
+	/**
+	 * @return What the validation found wrong with the users, by row.
+	 */
+	public SortedMap<Integer, ImportedUserValidator.Report> getReports()
+	{
+		return reports;
+	}
+
+	/**
+	 * @param row
+	 *        The row, counting from 1 for the first user.
+	 * @return The report for the row, or null if nothing was found wrong with it.
+	 */
+	public ImportedUserValidator.Report getReport(int row)
+	{
+		return reports.get(row);
+	}
+
+	/**
+	 * @return The number of users that will not be imported because of a problem found by the validation.
+	 */
+	public int getInvalidCount()
+	{
+		return invalid;
+	}
+
+	/**
+	 * Read back one block of users.
+	 *
+	 * @param block
+	 *        The block, from 0.
+	 * @return The users in the block, in file order.
+	 * @throws IOException
+	 *         if the file cannot be read.
+	 */
+	public List<ImportedUser> readBlock(int block) throws IOException
+	{
+		if (!isAvailable())
+		{
+			throw new IOException("the import file " + path + " is not available on this server");
+		}
+
+		int count = Math.min(BLOCK_SIZE, size - (block * BLOCK_SIZE));
+		List<ImportedUser> rv = new ArrayList<ImportedUser>(count);
+
+		FileInputStream in = new FileInputStream(path);
+		try
+		{
+			in.getChannel().position(blocks[block]);
+			CSVReader csv = new CSVReader(new InputStreamReader(in, ENCODING));
+			String[] line;
+			while (rv.size() < count && (line = csv.readNext()) != null)
+			{
+				rv.add(toUser(line));
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Read the first few users, for the preview.
+	 *
+	 * @param max
+	 *        The most users to read.
+	 * @return Up to max users, in file order; none if the file cannot be read.
+	 */
+	public List<ImportedUser> readSample(int max)
+	{
+		List<ImportedUser> rv = new ArrayList<ImportedUser>();
+		try
+		{
+			for (int block = 0; block < blocks.length && rv.size() < max; block++)
+			{
+				List<ImportedUser> users = readBlock(block);
+				rv.addAll(users.subList(0, Math.min(users.size(), max - rv.size())));
+			}
+		}
+		catch (IOException e)
+		{
+			LOG.warn("readSample(): " + path + ": " + e.getClass() + ":" + e.getMessage());
+		}
+		return rv;
+	}
+
+	/**
+	 * Remove the spill file, once the users are imported or the import is abandoned.
+	 */
+	public void delete()
+	{
+		File file = new File(path);
+		if (file.exists() && !file.delete())
+		{
+			LOG.warn("delete(): could not remove " + path);
+		}
+	}
+
+	private ImportedUser toUser(String[] line) throws IOException
+	{
+		ImportedUser u = new ImportedUser();
+		u.setEid(column(line, 0));
+		u.setFirstName(column(line, 1));
+		u.setLastName(column(line, 2));
+		u.setEmail(column(line, 3));
+		u.setPassword(decrypt(key, column(line, PASSWORD_COLUMN)));
+		u.setType(column(line, 5));
+
+		ResourceProperties p = new BaseResourcePropertiesEdit();
+		for (int i = FIXED_COLUMNS; i + 1 < line.length; i += 2)
+		{
+			p.addProperty(line[i], line[i + 1]);
+		}
+		u.setProperties(p);
+
+		return u;
+	}
+
+	/**
+	 * Encrypt a password for the spill file, as the IV followed by the cipher text, in base 64.
+	 */
+	private static String encrypt(SecretKey key, String value) throws IOException
+	{
+		if (value == null) return null;
+		try
+		{
+			byte[] iv = new byte[IV_LENGTH];
+			RANDOM.nextBytes(iv);
+			Cipher cipher = Cipher.getInstance(CIPHER);
+			cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, iv));
+			byte[] encrypted = cipher.doFinal(value.getBytes(ENCODING));
+
+			byte[] rv = new byte[iv.length + encrypted.length];
+			System.arraycopy(iv, 0, rv, 0, iv.length);
+			System.arraycopy(encrypted, 0, rv, iv.length, encrypted.length);
+			return Base64.getEncoder().encodeToString(rv);
+		}
+		catch (GeneralSecurityException e)
+		{
+			throw new IOException(e);
+		}
+	}
+
+	private static String decrypt(SecretKey key, String value) throws IOException
+	{
+		if (value == null) return null;
+		try
+		{
+			byte[] in = Base64.getDecoder().decode(value);
+			Cipher cipher = Cipher.getInstance(CIPHER);
+			cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, in, 0, IV_LENGTH));
+			return new String(cipher.doFinal(in, IV_LENGTH, in.length - IV_LENGTH), ENCODING);
+		}
+		catch (GeneralSecurityException e)
+		{
+			throw new IOException(e);
+		}
+		catch (IllegalArgumentException e)
+		{
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * The spill file can't tell a missing value from an empty one, both come back as null.
+	 */
+	private static String column(String[] line, int i)
+	{
+		return (i < line.length) ? StringUtils.defaultIfEmpty(line[i], null) : null;
+	}
+}
@@ -0,0 +1,278 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.user.tool;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.validator.routines.EmailValidator;
+import org.sakaiproject.component.cover.ServerConfigurationService;
+import org.sakaiproject.user.api.UserDirectoryService.PasswordRating;
+import org.sakaiproject.user.tool.PasswordPolicyHelper.TempUser;
+
+/**
+ * <p>
+ * ImportedUserValidator checks every user in an import file before any of them are created, so the bad rows can be seen up front rather than
+ * turning up one at a time as the import runs. The blocks of the file are checked in parallel with fork/join, and the result is a report for
+ * each row that has something wrong with it. A problem stops the row being imported, a warning is only shown.
+ * </p>
+ * <p>
+ * The user id is only checked for being there and fitting the directory's column; the directory has no other rules for it that the tool can
+ * see, so anything else it refuses still turns up as UserIdInvalidException when the row is created. The checks run on a pool of at most
+ * user.import.validate.threads threads (by default the cores, up to 4), which is shut down with the tool.
+ * </p>
+ */
+public class ImportedUserValidator
+{
+	/** The longest eid the directory will store. */
+	private static final int MAX_EID_LENGTH = 255;
+
+	/** The blocks checked by one task, before it is worth splitting. */
+	private static final int BLOCKS_PER_TASK = 2;
+
+	private static final ForkJoinPool POOL = new ForkJoinPool(Math.max(1,
+			ServerConfigurationService.getInt("user.import.validate.threads", Math.min(4, Runtime.getRuntime().availableProcessors()))));
+
+	private static final PasswordPolicyHelper pwHelper = new PasswordPolicyHelper();
+
+	/**
+	 * What is wrong with one row of the file. The problems and warnings are message keys in the admin bundle.
+	 */
+	public static class Report implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int row;
+		private final String eid;
+		private final List<String> problems = new ArrayList<String>(1);
+		private final List<String> warnings = new ArrayList<String>(1);
+
+		Report(int row, String eid)
+		{
+			this.row = row;
+			this.eid = eid;
+		}
+
+		/** @return The row in the file, counting from 1 for the first user. */
+		public int getRow()
+		{
+			return row;
+		}
+
+		public String getEid()
+		{
+			return eid;
+		}
+
+		public List<String> getProblems()
+		{
+			return problems;
+		}
+
+		public List<String> getWarnings()
+		{
+			return warnings;
+		}
+
+		/** @return true if the row can still be imported. */
+		public boolean isValid()
+		{
+			return problems.isEmpty();
+		}
+	}
+
+	private final ImportedUserFile file;
+	private final Set<String> providedTypes;
+	private final boolean enforcePasswordPolicy;
+
+	/**
+	 * @param file
+	 *        The users to check.
+	 * @param providedTypes
+	 *        The user types that come from a provider.
+	 * @param enforcePasswordPolicy
+	 *        false if a password that fails the policy is only a warning, as it is for super users elsewhere in the tool.
+	 */
+	public ImportedUserValidator(ImportedUserFile file, Set<String> providedTypes, boolean enforcePasswordPolicy)
+	{
+		this.file = file;
+		this.providedTypes = providedTypes;
+		this.enforcePasswordPolicy = enforcePasswordPolicy;
+	}
+
+	/**
+	 * Check every user in the file.
+	 *
+	 * @return The reports for the rows with something wrong, by row.
+	 * @throws IOException
+	 *         if the file cannot be read.
+	 */
+	public SortedMap<Integer, Report> validate() throws IOException
+	{
+		String[] eids = new String[file.size()];
+		SortedMap<Integer, Report> reports;
+		try
+		{
+			reports = POOL.invoke(new BlockTask(0, file.getBlockCount(), eids));
+		}
+		catch (RuntimeException e)
+		{
+			// a task that could not read its block, the exception may have been wrapped again on the way back from the pool
+			for (Throwable t = e.getCause(); t != null; t = t.getCause())
+			{
+				if (t instanceof IOException) throw (IOException) t;
+			}
+			throw e;
+		}
+
+		// duplicates need the whole file, and are cheap enough to find in one pass here
+		Set<String> seen = new HashSet<String>();
+		for (int i = 0; i < eids.length; i++)
+		{
+			if (eids[i] != null && !seen.add(eids[i]))
+			{
+				report(reports, i, eids[i]).problems.add("import.invalid.duplicate");
+			}
+		}
+
+		return reports;
+	}
+
+	/**
+	 * Stop the pool, when the tool is going away.
+	 */
+	public static void shutdown()
+	{
+		POOL.shutdownNow();
+	}
+
+	private static Report report(Map<Integer, Report> reports, int index, String eid)
+	{
+		Report report = reports.get(index + 1);
+		if (report == null)
+		{
+			report = new Report(index + 1, eid);
+			reports.put(index + 1, report);
+		}
+		return report;
+	}
+
+	/**
+	 * Checks a range of blocks, splitting it in two while it is big enough.
+	 */
+	private class BlockTask extends RecursiveTask<SortedMap<Integer, Report>>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int first;
+		private final int last;
+		private final String[] eids;
+
+		BlockTask(int first, int last, String[] eids)
+		{
+			this.first = first;
+			this.last = last;
+			this.eids = eids;
+		}
+
+		protected SortedMap<Integer, Report> compute()
+		{
+			if (last - first > BLOCKS_PER_TASK)
+			{
+				int middle = (first + last) >>> 1;
+				BlockTask right = new BlockTask(middle, last, eids);
+				right.fork();
+				SortedMap<Integer, Report> reports = new BlockTask(first, middle, eids).compute();
+				reports.putAll(right.join());
+				return reports;
+			}
+
+			SortedMap<Integer, Report> reports = new TreeMap<Integer, Report>();
+			for (int block = first; block < last; block++)
+			{
+				List<ImportedUser> users;
+				try
+				{
+					users = file.readBlock(block);
+				}
+				catch (IOException e)
+				{
+					throw new RuntimeException(e);
+				}
+
+				int offset = block * ImportedUserFile.BLOCK_SIZE;
+				for (int i = 0; i < users.size(); i++)
+				{
+					validate(users.get(i), offset + i, reports);
+				}
+			}
+			return reports;
+		}
+
+		private void validate(ImportedUser user, int index, Map<Integer, Report> reports)
+		{
+			// present and not too long to store; the directory does any other check itself when the user is added
+			String eid = StringUtils.trimToNull(user.getEid());
+			if (eid == null || eid.length() > MAX_EID_LENGTH)
+			{
+				report(reports, index, user.getEid()).problems.add("import.invalid.eid");
+			}
+			else
+			{
+				// the directory stores eids trimmed and in lower case, so that is how they clash
+				eids[index] = eid.toLowerCase();
+			}
+
+			String email = user.getEmail();
+			if (email != null && !EmailValidator.getInstance().isValid(email))
+			{
+				report(reports, index, user.getEid()).problems.add("useact.invemail");
+			}
+
+			// as on the user form, the password policy is only for local users
+			if (user.getType() != null && providedTypes.contains(user.getType()))
+			{
+				report(reports, index, user.getEid()).warnings.add("import.warn.provided");
+			}
+			else if (user.getPassword() != null)
+			{
+				TempUser tempUser = new TempUser(user.getEid(), user.getEmail(), user.getFirstName(), user.getLastName(), null, user.getPassword(),
+						user.getType());
+				if (pwHelper.validatePassword(user.getPassword(), tempUser) == PasswordRating.FAILED)
+				{
+					Report report = report(reports, index, user.getEid());
+					(enforcePasswordPolicy ? report.problems : report.warnings).add("pw.weak");
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,188 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.user.tool;
+
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.user.api.UserDirectoryService.PasswordRating;
+
+/**
+ * <p>
+ * PasswordPolicy is the password policy settings, compiled from the configuration and read again every user.password.policy.refresh
+ * seconds. By default passwords are still rated by the directory, so a site's own kernel PasswordPolicyProvider is always used. With
+ * user.password.policy.local=true they are rated here instead, without going to the directory, from the same settings the kernel's default
+ * provider reads: a password is failed if it has a run of more than user.password.maximum.sequence.length characters of the user's eid in it,
+ * and otherwise rated by its entropy (the length times the bits per character of the character classes it uses) against
+ * user.password.minimum.entropy, user.password.medium.entropy and user.password.high.entropy. Only set this when the default provider is in
+ * use. The same check against the first and last names can be added with user.password.policy.local.names=true. Rating a password creates
+ * no objects.
+ * </p>
+ */
+public class PasswordPolicy
+{
+	private static final int LOWER = 1;
+	private static final int UPPER = 2;
+	private static final int DIGIT = 4;
+	private static final int OTHER = 8;
+
+	private final boolean enabled;
+	private final boolean local;
+	private final long refresh;
+	private final int minEntropy;
+	private final int mediumEntropy;
+	private final int highEntropy;
+	private final int maxSequence;
+	private final boolean checkNames;
+
+	/** The bits per character for each combination of character classes, by class mask. */
+	private final double[] bits = new double[16];
+
+	PasswordPolicy(boolean enabled, boolean local, long refresh, int minEntropy, int mediumEntropy, int highEntropy, int maxSequence,
+			boolean checkNames)
+	{
+		this.enabled = enabled;
+		this.local = local;
+		this.refresh = refresh;
+		this.minEntropy = minEntropy;
+		this.mediumEntropy = mediumEntropy;
+		this.highEntropy = highEntropy;
+		this.maxSequence = maxSequence;
+		this.checkNames = checkNames;
+
+		for (int mask = 1; mask < bits.length; mask++)
+		{
+			int pool = 0;
+			if ((mask & LOWER) != 0) pool += 26;
+			if ((mask & UPPER) != 0) pool += 26;
+			if ((mask & DIGIT) != 0) pool += 10;
+			if ((mask & OTHER) != 0) pool += 33;
+			bits[mask] = Math.log(pool) / Math.log(2);
+		}
+	}
+
+	/**
+	 * Compile the policy from the configuration.
+	 *
+	 * @param config
+	 *        The configuration.
+	 * @param enabled
+	 *        true if the directory has a password policy.
+	 * @return The policy.
+	 */
+	static PasswordPolicy compile(ServerConfigurationService config, boolean enabled)
+	{
+		long refresh = Math.max(0, config.getInt("user.password.policy.refresh", 300)) * 1000L;
+		if (!enabled)
+		{
+			return new PasswordPolicy(false, false, refresh, 16, 32, 48, 3, false);
+		}
+
+		return new PasswordPolicy(true,
+				config.getBoolean("user.password.policy.local", false),
+				refresh,
+				config.getInt("user.password.minimum.entropy", 16),
+				config.getInt("user.password.medium.entropy", 32),
+				config.getInt("user.password.high.entropy", 48),
+				Math.max(0, config.getInt("user.password.maximum.sequence.length", 3)),
+				config.getBoolean("user.password.policy.local.names", false));
+	}
+
+	/**
+	 * @return true if the directory has a password policy, so passwords are rated.
+	 */
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * @return true if passwords are rated here, rather than by the directory.
+	 */
+	public boolean isLocal()
+	{
+		return local;
+	}
+
+	/**
+	 * @return How long the policy is used before it is read again from the configuration, in ms.
+	 */
+	public long getRefresh()
+	{
+		return refresh;
+	}
+
+	/**
+	 * Rate a password.
+	 *
+	 * @param password
+	 *        The password.
+	 * @param eid
+	 *        The user's eid, or null.
+	 * @param firstName
+	 *        The user's first name, or null.
+	 * @param lastName
+	 *        The user's last name, or null.
+	 * @return The rating, PASSED_DEFAULT if there is no policy.
+	 */
+	public PasswordRating rate(String password, String eid, String firstName, String lastName)
+	{
+		if (!enabled) return PasswordRating.PASSED_DEFAULT;
+		if (password == null || password.length() == 0) return PasswordRating.FAILED;
+
+		if (contains(password, eid)) return PasswordRating.FAILED;
+		if (checkNames && (contains(password, firstName) || contains(password, lastName))) return PasswordRating.FAILED;
+
+		int classes = 0;
+		for (int i = 0; i < password.length(); i++)
+		{
+			char c = password.charAt(i);
+			if (c >= 'a' && c <= 'z') classes |= LOWER;
+			else if (c >= 'A' && c <= 'Z') classes |= UPPER;
+			else if (c >= '0' && c <= '9') classes |= DIGIT;
+			else classes |= OTHER;
+		}
+
+		double entropy = password.length() * bits[classes];
+		if (entropy >= highEntropy) return PasswordRating.STRONG;
+		if (entropy >= mediumEntropy) return PasswordRating.MODERATE;
+		if (entropy >= minEntropy) return PasswordRating.WEAK;
+		return PasswordRating.FAILED;
+	}
+
+	/**
+	 * @return true if the password has a run of more than maxSequence characters of the value in it, ignoring case. A maxSequence of 0 turns
+	 *         the check off.
+	 */
+	private boolean contains(String password, String value)
+	{
+		int run = maxSequence + 1;
+		if (maxSequence <= 0 || value == null || value.length() < run || password.length() < run) return false;
+
+		for (int from = 0; from + run <= value.length(); from++)
+		{
+			for (int at = 0; at + run <= password.length(); at++)
+			{
+				if (password.regionMatches(true, at, value, from, run)) return true;
+			}
+		}
+		return false;
+	}
+}
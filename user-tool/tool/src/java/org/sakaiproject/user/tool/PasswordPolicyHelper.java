@@ -25,6 +25,7 @@ package org.sakaiproject.user.tool;
 import lombok.Getter;
 import lombok.Setter;
 import org.sakaiproject.cheftool.Context;
+import org.sakaiproject.component.api.ServerConfigurationService;
 import org.sakaiproject.component.cover.ComponentManager;
 import org.sakaiproject.entity.api.ResourceProperties;
 import org.sakaiproject.time.api.Time;
@@ -49,14 +50,39 @@ public class PasswordPolicyHelper {
     /** velocity param name for password policy enabled/disabled */
     private static final String JS_ENABLED_KEY = "isPasswordPolicyEnabled";
 
-    /** velocity param value for password policy enabled/disabled */
-    private static final boolean policyEnabled = (uds.getPasswordPolicy() != null);
+    /** velocity param name for the URL the forms ask for a password rating */
+    private static final String JS_RATING_URL_KEY = "passwordRatingUrl";
+
+    /** Configuration API */
+    private static ServerConfigurationService scs = (ServerConfigurationService) ComponentManager.get(ServerConfigurationService.class);
+
+    /** the compiled policy, shared by all the helpers */
+    private static volatile PasswordPolicy policy = null;
+
+    /** when the compiled policy is next read again */
+    private static volatile long expires = 0;
 
     /**
      * Default zero-arg constructor
      */
     public PasswordPolicyHelper() {}
 
+    /**
+     * Get the compiled password policy, reading it again from the configuration if it is too old,
+     * so policy changes are seen without a restart
+     * @return the policy
+     */
+    public PasswordPolicy getPolicy() {
+        PasswordPolicy current = policy;
+        long now = System.currentTimeMillis();
+        if (current == null || now > expires) {
+            current = PasswordPolicy.compile(scs, uds.getPasswordPolicy() != null);
+            policy = current;
+            expires = now + current.getRefresh();
+        }
+        return current;
+    }
+
     /**
      * Validate the given password for the given user
      * @param password
@@ -66,18 +92,51 @@ public class PasswordPolicyHelper {
      * @return true/false (valid/invalid)
      */
     public PasswordRating validatePassword(String password, User user) {
-        if (policyEnabled) {
+        PasswordPolicy current = getPolicy();
+        if (!current.isEnabled()) {
+            return PasswordRating.PASSED_DEFAULT;
+        }
+        if (!current.isLocal()) {
             return uds.validatePassword(password, user);
         }
-        return PasswordRating.PASSED_DEFAULT;
+        if (user == null) {
+            return current.rate(password, null, null, null);
+        }
+        return current.rate(password, user.getEid(), user.getFirstName(), user.getLastName());
+    }
+
+    /**
+     * Validate the given password for a user that may not exist yet, as it is typed on a form
+     * @param password
+     * 				the password to be validated
+     * @param eid
+     * 				the user's external ID, or null
+     * @param firstName
+     * 				the user's first name, or null
+     * @param lastName
+     * 				the user's last name, or null
+     * @return the rating
+     */
+    public PasswordRating validatePassword(String password, String eid, String firstName, String lastName) {
+        PasswordPolicy current = getPolicy();
+        if (!current.isEnabled()) {
+            return PasswordRating.PASSED_DEFAULT;
+        }
+        if (!current.isLocal()) {
+            return uds.validatePassword(password, new TempUser(eid, null, firstName, lastName, null, password, null));
+        }
+        return current.rate(password, eid, firstName, lastName);
     }
 
     /**
      * Add necessary parameters into the context for password policy enforcement
      * @param context
+     * @param ratingUrl
+     * 				the URL the forms ask for a password rating
      */
-    public void addJavaScriptParamsToContext(Context context) {
-        context.put(JS_ENABLED_KEY, policyEnabled);
+    public void addJavaScriptParamsToContext(Context context, String ratingUrl) {
+        context.put(JS_ENABLED_KEY, getPolicy().isEnabled());
+        context.put(JS_RATING_URL_KEY, ratingUrl);
     }
 
     /**
@@ -127,6 +186,8 @@ public class PasswordPolicyHelper {
             this.type 			= type;
         }
 
+        // the getters for the fields above come from lombok, so the policy can check the password against them
+
         /***********************************************************************************************
          ********************************* UNIMPLEMENTED METHODS ***************************************
          ***********************************************************************************************/
@@ -135,17 +196,11 @@ public class PasswordPolicyHelper {
         @Override public boolean 			checkPassword(String arg0) 					{ return false; }
         @Override public String 			getId() 									{ return null; }
         @Override public String 			getDisplayId() 								{ return null; }
-        @Override public String 			getDisplayName() 							{ return null; }
-        @Override public String 			getEid() 									{ return null; }
-        @Override public String 			getEmail()									{ return null; }
-        @Override public String 			getFirstName() 								{ return null; }
-        @Override public String 			getLastName() 								{ return null; }
         @Override public String 			getReference() 								{ return null; }
         @Override public String 			getReference(String arg0)					{ return null; }
         @Override public String 			getUrl() 									{ return null; }
         @Override public String 			getUrl(String arg0) 						{ return null; }
         @Override public String 			getSortName() 								{ return null; }
-        @Override public String 			getType() 									{ return null; }
         @Override public User 				getModifiedBy() 							{ return null; }
         @Override public User 				getCreatedBy() 								{ return null; }
         @Override public Date 				getCreatedDate() 							{ return null; }
@@ -0,0 +1,171 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.user.tool;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang.StringUtils;
+import org.sakaiproject.component.cover.ServerConfigurationService;
+import org.sakaiproject.tool.api.Session;
+import org.sakaiproject.tool.cover.SessionManager;
+import org.sakaiproject.user.api.UserDirectoryService.PasswordRating;
+
+/**
+ * <p>
+ * PasswordRatingServlet rates a password as it is typed on the user forms: POST password?password=...&amp;eid=... (and optionally firstName
+ * and lastName) returns {"rating":"WEAK"}, or FAILED, MODERATE, STRONG or PASSED_DEFAULT when there is no policy. The rating comes from the
+ * compiled PasswordPolicy, so it costs no more than the check when the form is posted. It is open to anyone with a session, as the create
+ * account form is used before logging in, so each session, and each logged in user, may only rate user.password.rating.limit passwords a
+ * minute. A limit for each client address can be added with user.password.rating.limit.address; it is off by default, as behind a load
+ * balancer or proxy everyone may come from the same address. The counts are kept on this server only.
+ * </p>
+ */
+public class PasswordRatingServlet extends HttpServlet
+{
+	private static final long serialVersionUID = 1L;
+
+	/** Too Many Requests, which HttpServletResponse does not have. */
+	private static final int SC_TOO_MANY_REQUESTS = 429;
+
+	private static final long WINDOW = 60L * 1000L;
+
+	/** The counters there can be before the ones from earlier minutes are dropped. */
+	private static final int MAX_COUNTERS = 10000;
+
+	private static final PasswordPolicyHelper pwHelper = new PasswordPolicyHelper();
+
+	/** The ratings asked for in the current minute, by session, user and client address. */
+	private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+
+	private int limit;
+
+	/** The most ratings for one client address in a minute, 0 for no limit. */
+	private int addressLimit;
+
+	/**
+	 * The ratings asked for in the current minute.
+	 */
+	private static class Counter
+	{
+		long start;
+		int count;
+	}
+
+	public void init() throws ServletException
+	{
+		super.init();
+		limit = Math.max(1, ServerConfigurationService.getInt("user.password.rating.limit", 120));
+		addressLimit = Math.max(0, ServerConfigurationService.getInt("user.password.rating.limit.address", 0));
+	}
+
+	protected void doPost(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException
+	{
+		Session session = SessionManager.getCurrentSession();
+		if (session == null)
+		{
+			res.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+		// every one is counted, so each of them is held to its limit
+		boolean allowed = allow("session:" + session.getId(), limit);
+		if (session.getUserId() != null)
+		{
+			allowed &= allow("user:" + session.getUserId(), limit);
+		}
+		if (addressLimit > 0)
+		{
+			allowed &= allow("address:" + req.getRemoteAddr(), addressLimit);
+		}
+		if (!allowed)
+		{
+			res.sendError(SC_TOO_MANY_REQUESTS);
+			return;
+		}
+
+		PasswordRating rating = pwHelper.validatePassword(req.getParameter("password"), StringUtils.trimToNull(req.getParameter("eid")),
+				StringUtils.trimToNull(req.getParameter("firstName")), StringUtils.trimToNull(req.getParameter("lastName")));
+
+		res.setContentType("application/json");
+		res.setCharacterEncoding("UTF-8");
+		res.setHeader("Cache-Control", "no-store");
+		res.getWriter().print("{\"rating\":\"" + rating.name() + "\"}");
+	}
+
+	/**
+	 * Count a rating against a session, user or address.
+	 *
+	 * @param key
+	 *        What the rating is counted against.
+	 * @param max
+	 *        The most ratings it may have in a minute.
+	 * @return true if it is still under its limit.
+	 */
+	private boolean allow(String key, int max)
+	{
+		long now = System.currentTimeMillis();
+		if (counters.size() > MAX_COUNTERS)
+		{
+			purge(now);
+		}
+
+		Counter counter = counters.get(key);
+		if (counter == null)
+		{
+			Counter created = new Counter();
+			counter = counters.putIfAbsent(key, created);
+			if (counter == null) counter = created;
+		}
+
+		synchronized (counter)
+		{
+			if (now - counter.start > WINDOW)
+			{
+				counter.start = now;
+				counter.count = 0;
+			}
+			return ++counter.count <= max;
+		}
+	}
+
+	/**
+	 * Drop the counters for the minutes that are over.
+	 */
+	private void purge(long now)
+	{
+		for (Iterator<Counter> i = counters.values().iterator(); i.hasNext();)
+		{
+			Counter counter = i.next();
+			synchronized (counter)
+			{
+				if (now - counter.start > WINDOW) i.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,660 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.user.tool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.sakaiproject.component.cover.ServerConfigurationService;
+import org.sakaiproject.entity.api.ResourceProperties;
+import org.sakaiproject.tool.api.Session;
+import org.sakaiproject.tool.cover.SessionManager;
+import org.sakaiproject.user.api.User;
+import org.sakaiproject.user.api.UserAlreadyDefinedException;
+import org.sakaiproject.user.api.UserEdit;
+import org.sakaiproject.user.api.UserIdInvalidException;
+import org.sakaiproject.user.api.UserPermissionException;
+import org.sakaiproject.user.cover.UserDirectoryService;
+import org.sakaiproject.util.ResourceLoader;
+import org.sakaiproject.util.StringUtil;
+
+/**
+ * <p>
+ * UserImportJob creates the users read from an import file. The rows are read back from the ImportedUserFile a block at a time, and the
+ * blocks run on a small, bounded pool of worker threads, so a large file no longer ties up the request that started it. Every row keeps its
+ * own result, and the job itself lives in a registry outside the HTTP request; the tool session only holds the job id. Before anything is
+ * written, a pre-flight looks all the eids up in the directory in batches, so users that already exist are skipped (or updated, with
+ * user.import.update.existing) without a failed insert for each of them. A job that stops, for instance when the permission to add users is lost, can be
+ * resumed and will only process the rows that are still pending. The spill file, with the passwords in it, is removed as soon as no row is
+ * left pending.
+ * </p>
+ * <p>
+ * The registry is only held in this server's memory, as is the key for the passwords in the spill file. A job, and the chance to resume it, is
+ * lost if the server restarts, and a session that moves to another server does not see it; the rows that were not done yet have to be
+ * imported again from the file.
+ * </p>
+ */
+public class UserImportJob
+{
+	/** Our log (commons). */
+	private static final Log LOG = LogFactory.getLog(UserImportJob.class);
+
+	private static ResourceLoader rb = new ResourceLoader("admin");
+
+	/** How long a finished job is kept for its owner to look at, in ms. */
+	private static final long RETAIN_FINISHED = 60L * 60L * 1000L;
+
+	/** The jobs, by id. */
+	private static final ConcurrentMap<String, UserImportJob> JOBS = new ConcurrentHashMap<String, UserImportJob>();
+
+	/** The workers shared by all the import jobs. */
+	private static final ExecutorService WORKERS = UserToolWorkers.newPool("UserImportJob", ServerConfigurationService.getInt("user.import.threads", 2));
+
+	/**
+	 * The outcome of one row of the import.
+	 */
+	public static class Result
+	{
+		public static final String PENDING = "pending";
+		public static final String CREATED = "created";
+		public static final String UPDATED = "updated";
+		public static final String SKIPPED = "skipped";
+		public static final String FAILED = "failed";
+
+		/** What the pre-flight decided to do with a pending row. */
+		static final String CREATE = "create";
+		static final String UPDATE = "update";
+
+		private final int row;
+		private volatile String eid;
+		private volatile String action;
+		private volatile String userId;
+		private volatile String status = PENDING;
+		private volatile String message;
+
+		Result(int row)
+		{
+			this.row = row;
+		}
+
+		/** @return The row in the file, counting from 1 for the first user. */
+		public int getRow()
+		{
+			return row;
+		}
+
+		public String getEid()
+		{
+			return eid;
+		}
+
+		public String getStatus()
+		{
+			return status;
+		}
+
+		public String getMessage()
+		{
+			return message;
+		}
+	}
+
+	private final String id;
+	private final ImportedUserFile file;
+	private final Result[] results;
+
+	/** If users already in the directory are brought into line with the file, rather than left alone, as configured when the job started. */
+	private final boolean updateExisting;
+
+	/** The session whose user started the import, the workers act as this user. */
+	private final Session session;
+
+	private final AtomicInteger created = new AtomicInteger();
+	private final AtomicInteger updated = new AtomicInteger();
+	private final AtomicInteger skipped = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+
+	/** The steps submitted and not yet run. */
+	private final AtomicInteger running = new AtomicInteger();
+
+	/** Set when a row hits a problem that the remaining rows would hit too. */
+	private volatile boolean stopped = false;
+
+	private volatile long finished = 0;
+
+	private UserImportJob(ImportedUserFile file, Session session)
+	{
+		this.id = UUID.randomUUID().toString();
+		this.file = file;
+		this.session = session;
+		this.updateExisting = isUpdateExisting();
+		this.results = new Result[file.size()];
+		for (int i = 0; i < results.length; i++)
+		{
+			results[i] = new Result(i + 1);
+		}
+	}
+
+	/**
+	 * Create a job for these users and start it, acting as the current session's user. The job looks after the file from now on, and removes it
+	 * once the job is removed.
+	 *
+	 * @param file
+	 *        The users to create.
+	 * @return The running job.
+	 */
+	public static UserImportJob start(ImportedUserFile file)
+	{
+		purge();
+
+		UserImportJob job = new UserImportJob(file, SessionManager.getCurrentSession());
+		JOBS.put(job.getId(), job);
+		job.submit();
+
+		LOG.info("start(): import " + job.getId() + " of " + job.getTotal() + " users by " + job.session.getUserEid());
+		return job;
+	}
+
+	/**
+	 * @return true if an import brings users already in the directory into line with the file (user.import.update.existing), rather than
+	 *         skipping them.
+	 */
+	public static boolean isUpdateExisting()
+	{
+		return ServerConfigurationService.getBoolean("user.import.update.existing", false);
+	}
+
+	/**
+	 * @param id
+	 *        The job id.
+	 * @return The job, or null if there is none (it finished long ago, or ran on another server).
+	 */
+	public static UserImportJob get(String id)
+	{
+		return (id == null) ? null : JOBS.get(id);
+	}
+
+	/**
+	 * Forget a job, once its owner is done with it. A job still running carries on and is purged later.
+	 *
+	 * @param id
+	 *        The job id.
+	 */
+	public static void remove(String id)
+	{
+		UserImportJob job = get(id);
+		if (job != null && !job.isRunning())
+		{
+			JOBS.remove(id);
+			job.file.delete();
+		}
+	}
+
+	/**
+	 * Drop the jobs that finished a while ago and were never collected.
+	 */
+	private static void purge()
+	{
+		long cutoff = System.currentTimeMillis() - RETAIN_FINISHED;
+		for (Iterator<UserImportJob> i = JOBS.values().iterator(); i.hasNext();)
+		{
+			UserImportJob job = i.next();
+			if (!job.isRunning() && job.finished > 0 && job.finished < cutoff)
+			{
+				i.remove();
+				job.file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Pick up a stopped job, processing only the rows still pending.
+	 *
+	 * @return true if there was something left to do.
+	 */
+	public synchronized boolean resume()
+	{
+		if (isRunning() || getPending() == 0) return false;
+
+		stopped = false;
+		submit();
+		return true;
+	}
+
+	/**
+	 * Start the pre-flight for the pending rows, which hands them on to the workers once it knows what to do with each of them.
+	 */
+	private synchronized void submit()
+	{
+		execute(new Runnable()
+		{
+			public void run()
+			{
+				preflight();
+			}
+		}, "pre-flight");
+	}
+
+	/**
+	 * Look up the eids of the pending rows in the directory, a block at a time, and sort the rows into those to create, those to update and those
+	 * to skip. The rows that need writing are then handed to the workers. Nothing is written until every row has been looked up.
+	 */
+	private void preflight()
+	{
+		List<Integer> blocks = new ArrayList<Integer>();
+		for (int block = 0; block < file.getBlockCount() && !stopped; block++)
+		{
+			List<ImportedUser> users;
+			try
+			{
+				users = file.readBlock(block);
+			}
+			catch (IOException e)
+			{
+				LOG.warn("preflight(): import " + id + " block " + block + ": " + e.getClass() + ":" + e.getMessage());
+				unreadableBlock(block, e);
+				continue;
+			}
+
+			int first = block * ImportedUserFile.BLOCK_SIZE;
+			Map<String, Integer> rows = new HashMap<String, Integer>();
+			for (int i = 0; i < users.size(); i++)
+			{
+				Result result = results[first + i];
+				if (!Result.PENDING.equals(result.status)) continue;
+
+				ImportedUserValidator.Report report = file.getReport(result.row);
+				if (report != null && !report.isValid())
+				{
+					invalidRow(users.get(i), report, result);
+				}
+				else
+				{
+					// the directory keeps eids in lower case, and the validation has made sure there is one
+					rows.put(users.get(i).getEid().trim().toLowerCase(), first + i);
+					result.action = Result.CREATE;
+				}
+			}
+			if (rows.isEmpty()) continue;
+
+			for (User existing : UserDirectoryService.getInstance().getUsersByEids(rows.keySet()))
+			{
+				Integer row = rows.get(existing.getEid().toLowerCase());
+				if (row == null) continue;
+
+				Result result = results[row];
+				if (updateExisting && isChanged(existing, users.get(row - first)))
+				{
+					result.action = Result.UPDATE;
+					result.userId = existing.getId();
+				}
+				else
+				{
+					result.eid = users.get(row - first).getEid();
+					result.status = Result.SKIPPED;
+					skipped.incrementAndGet();
+				}
+			}
+
+			blocks.add(block);
+		}
+
+		for (Integer block : blocks)
+		{
+			submit(block);
+		}
+	}
+
+	/**
+	 * @return true if the imported row would change the user already in the directory. Only the values given in the row count, a column
+	 *         missing from the file, or left empty, leaves the user's value alone.
+	 */
+	private boolean isChanged(User existing, ImportedUser user)
+	{
+		if (isDifferent(existing.getFirstName(), user.getFirstName())) return true;
+		if (isDifferent(existing.getLastName(), user.getLastName())) return true;
+		if (isDifferent(existing.getEmail(), user.getEmail())) return true;
+		if (isDifferent(existing.getType(), user.getType())) return true;
+
+		ResourceProperties properties = user.getProperties();
+		if (properties != null)
+		{
+			for (Iterator<String> i = properties.getPropertyNames(); i.hasNext();)
+			{
+				String name = i.next();
+				if (isDifferent(existing.getProperties().getProperty(name), properties.getProperty(name))) return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return true if the row has a value, and it is not the one the user has.
+	 */
+	private boolean isDifferent(String current, String imported)
+	{
+		return StringUtils.isNotBlank(imported) && StringUtil.different(current, imported);
+	}
+
+	private void submit(final int block)
+	{
+		execute(new Runnable()
+		{
+			public void run()
+			{
+				List<ImportedUser> users;
+				try
+				{
+					users = file.readBlock(block);
+				}
+				catch (IOException e)
+				{
+					LOG.warn("run(): import " + id + " block " + block + ": " + e.getClass() + ":" + e.getMessage());
+					unreadableBlock(block, e);
+					return;
+				}
+
+				int first = block * ImportedUserFile.BLOCK_SIZE;
+				for (int i = 0; i < users.size(); i++)
+				{
+					if (stopped) break;
+
+					Result result = results[first + i];
+					if (!Result.PENDING.equals(result.status)) continue;
+
+					if (Result.UPDATE.equals(result.action))
+					{
+						updateRow(users.get(i), result);
+					}
+					else if (Result.CREATE.equals(result.action))
+					{
+						importRow(users.get(i), result);
+					}
+				}
+			}
+		}, "block " + block);
+	}
+
+	/**
+	 * Run a step of the job on the workers, as the user who started it.
+	 */
+	private void execute(final Runnable step, final String name)
+	{
+		running.incrementAndGet();
+		WORKERS.execute(UserToolWorkers.asUser(session, new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					step.run();
+				}
+				catch (Throwable t)
+				{
+					LOG.warn("run(): import " + id + " " + name + " failed: " + t.getClass() + ":" + t.getMessage());
+				}
+				finally
+				{
+					if (running.decrementAndGet() == 0)
+					{
+						finished = System.currentTimeMillis();
+
+						// the file is only kept while there are rows left for a resume
+						if (getPending() == 0)
+						{
+							file.delete();
+						}
+						LOG.info("run(): import " + id + " finished: " + created.get() + " created, " + updated.get() + " updated, " + skipped.get()
+								+ " skipped, " + failed.get() + " failed, " + getPending() + " pending");
+					}
+				}
+			}
+		}));
+	}
+
+	/**
+	 * Fail the rows still pending in a block that could not be read back from the file, so the job does not look finished with them left
+	 * undone.
+	 *
+	 * @param block
+	 *        The block.
+	 * @param e
+	 *        Why it could not be read.
+	 */
+	private void unreadableBlock(int block, IOException e)
+	{
+		int first = block * ImportedUserFile.BLOCK_SIZE;
+		int last = Math.min(first + ImportedUserFile.BLOCK_SIZE, results.length);
+		for (int i = first; i < last; i++)
+		{
+			Result result = results[i];
+			if (!Result.PENDING.equals(result.status)) continue;
+
+			result.message = rb.getFormattedMessage("import.job.unreadable", new Object[] { e.getMessage() });
+			result.status = Result.FAILED;
+			failed.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Record a row that failed validation, without trying to create it.
+	 *
+	 * @param user
+	 *        The user read from the row.
+	 * @param report
+	 *        What the validation found wrong with it.
+	 * @param result
+	 *        The result for the row.
+	 */
+	private void invalidRow(ImportedUser user, ImportedUserValidator.Report report, Result result)
+	{
+		StringBuilder message = new StringBuilder();
+		for (String problem : report.getProblems())
+		{
+			if (message.length() > 0) message.append("; ");
+			message.append(rb.getString(problem));
+		}
+
+		result.eid = user.getEid();
+		result.message = message.toString();
+		result.status = Result.FAILED;
+		failed.incrementAndGet();
+	}
+
+	/**
+	 * Bring the user already in the directory into line with the row, and record how it went.
+	 *
+	 * @param user
+	 *        The user read from the row.
+	 * @param result
+	 *        The result for the row.
+	 */
+	private void updateRow(ImportedUser user, Result result)
+	{
+		result.eid = user.getEid();
+		UserEdit edit = null;
+		try
+		{
+			edit = UserDirectoryService.editUser(result.userId);
+
+			// a column missing from the file, or left empty, leaves the user's value alone
+			if (StringUtils.isNotBlank(user.getFirstName())) edit.setFirstName(user.getFirstName());
+			if (StringUtils.isNotBlank(user.getLastName())) edit.setLastName(user.getLastName());
+			if (StringUtils.isNotBlank(user.getEmail())) edit.setEmail(user.getEmail());
+			if (StringUtils.isNotBlank(user.getType())) edit.setType(user.getType());
+			ResourceProperties properties = user.getProperties();
+			if (properties != null)
+			{
+				for (Iterator<String> i = properties.getPropertyNames(); i.hasNext();)
+				{
+					String name = i.next();
+					String value = properties.getProperty(name);
+					if (StringUtils.isNotBlank(value)) edit.getPropertiesEdit().addProperty(name, value);
+				}
+			}
+			UserDirectoryService.commitEdit(edit);
+			edit = null;
+
+			result.status = Result.UPDATED;
+			updated.incrementAndGet();
+		}
+		catch (UserPermissionException e)
+		{
+			// as for adding, the rest would fail the same way
+			LOG.warn("updateRow(): import " + id + " stopped: " + e.getClass() + ":" + e.getMessage());
+			stopped = true;
+		}
+		catch (Exception e)
+		{
+			LOG.warn("updateRow(): import " + id + " row " + result.row + ": " + e.getClass() + ":" + e.getMessage());
+			result.message = e.getMessage();
+			result.status = Result.FAILED;
+			failed.incrementAndGet();
+		}
+		finally
+		{
+			if (edit != null)
+			{
+				UserDirectoryService.cancelEdit(edit);
+			}
+		}
+	}
+
+	/**
+	 * Create the user for one row and record how it went.
+	 *
+	 * @param user
+	 *        The user read from the row.
+	 * @param result
+	 *        The result for the row.
+	 */
+	private void importRow(ImportedUser user, Result result)
+	{
+		result.eid = user.getEid();
+		try
+		{
+			UserDirectoryService.addUser(null, user.getEid(), user.getFirstName(), user.getLastName(), user.getEmail(), user.getPassword(),
+					user.getType(), user.getProperties());
+			result.status = Result.CREATED;
+			created.incrementAndGet();
+		}
+		catch (UserAlreadyDefinedException e)
+		{
+			// ok, just skip
+			result.status = Result.SKIPPED;
+			skipped.incrementAndGet();
+		}
+		catch (UserIdInvalidException e)
+		{
+			result.message = rb.getString("useact.theuseid2");
+			result.status = Result.FAILED;
+			failed.incrementAndGet();
+		}
+		catch (UserPermissionException e)
+		{
+			// every other row would fail the same way, so leave this and the rest pending for a resume
+			LOG.warn("importRow(): import " + id + " stopped: " + e.getClass() + ":" + e.getMessage());
+			stopped = true;
+		}
+		catch (RuntimeException e)
+		{
+			LOG.warn("importRow(): import " + id + " row " + result.row + ": " + e.getClass() + ":" + e.getMessage());
+			result.message = e.getMessage();
+			result.status = Result.FAILED;
+			failed.incrementAndGet();
+		}
+	}
+
+	public String getId()
+	{
+		return id;
+	}
+
+	public int getTotal()
+	{
+		return results.length;
+	}
+
+	public int getCreated()
+	{
+		return created.get();
+	}
+
+	public int getUpdated()
+	{
+		return updated.get();
+	}
+
+	public int getSkipped()
+	{
+		return skipped.get();
+	}
+
+	public int getFailed()
+	{
+		return failed.get();
+	}
+
+	public int getPending()
+	{
+		return results.length - created.get() - updated.get() - skipped.get() - failed.get();
+	}
+
+	public boolean isRunning()
+	{
+		return running.get() > 0;
+	}
+
+	/**
+	 * @return true if the job stopped early and has rows that a resume would pick up.
+	 */
+	public boolean isStopped()
+	{
+		return stopped && !isRunning() && getPending() > 0;
+	}
+
+	/**
+	 * @return The rows that could not be created, in file order.
+	 */
+	public List<Result> getFailures()
+	{
+		List<Result> rv = new ArrayList<Result>();
+		for (Result result : results)
+		{
+			if (Result.FAILED.equals(result.status)) rv.add(result);
+		}
+		return rv;
+	}
+}
@@ -0,0 +1,322 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.user.tool;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.sakaiproject.component.cover.ServerConfigurationService;
+import org.sakaiproject.event.api.Event;
+import org.sakaiproject.event.cover.EventTrackingService;
+import org.sakaiproject.user.api.User;
+import org.sakaiproject.user.api.UserDirectoryService;
+
+/**
+ * <p>
+ * UserListCache keeps the user counts behind the paging of the Users list, so moving from page to page only costs the query for the page.
+ * Counts are kept by search term for user.list.count.ttl seconds, and all of them are dropped as soon as a user is added or removed anywhere in
+ * the cluster.
+ * </p>
+ * <p>
+ * With user.list.paging.lookahead set, the list also reads that many pages beyond the current one in the same query and keeps them as a Window, so an admin stepping
+ * through a large directory page by page only pays for the deep offset once every few pages. The windows are kept here, on this server, and
+ * the session only holds the id of its window, so the users are never put in the (possibly replicated) session. If the session moves to
+ * another server, or its window has been pushed out, the page is just read again.
+ * </p>
+ */
+public class UserListCache implements Observer
+{
+	/** Our log (commons). */
+	private static final Log LOG = LogFactory.getLog(UserListCache.class);
+
+	/** The most search terms to keep a count for. */
+	private static final int MAX_ENTRIES = 100;
+
+	/** The most windows to keep, one for each session paging through the list. */
+	private static final int MAX_WINDOWS = 100;
+
+	private static class Count
+	{
+		final int value;
+		final long expires;
+
+		Count(int value, long expires)
+		{
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+
+	/** The counts, by search term; the empty term is the count of all users. Least recently used first. */
+	private final Map<String, Count> counts = new LinkedHashMap<String, Count>(16, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<String, Count> eldest)
+		{
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	/** The windows, by id. Least recently used first. */
+	private final Map<String, Window> windows = new LinkedHashMap<String, Window>(16, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<String, Window> eldest)
+		{
+			return size() > MAX_WINDOWS;
+		}
+	};
+
+	private final long ttl;
+
+	private final int lookahead;
+
+	/** Moves on whenever users are added, removed or changed, so windows read before then are not used. */
+	private final AtomicLong generation = new AtomicLong();
+
+	/**
+	 * A run of users read ahead for the list, covering several pages from one offset.
+	 */
+	private static class Window
+	{
+		private final String search;
+		private final int first;
+		private final List<User> users;
+		private final boolean complete;
+		private final long generation;
+
+		private Window(String search, int first, List<User> users, boolean complete, long generation)
+		{
+			this.search = search;
+			this.first = first;
+			this.users = users;
+			this.complete = complete;
+			this.generation = generation;
+		}
+
+		/**
+		 * @return The users for the page, or null if the window does not hold the page.
+		 */
+		private List<User> getPage(String search, int first, int last, long generation)
+		{
+			if (generation != this.generation || !StringUtils.equals(search, this.search)) return null;
+
+			// positions are counted from 1, as they are by the paging
+			int from = first - this.first;
+			int to = last - this.first + 1;
+			if (from < 0 || (to > users.size() && !complete)) return null;
+
+			return new ArrayList<User>(users.subList(Math.min(from, users.size()), Math.min(to, users.size())));
+		}
+	}
+
+	public UserListCache()
+	{
+		ttl = ServerConfigurationService.getInt("user.list.count.ttl", 60) * 1000L;
+		lookahead = ServerConfigurationService.getInt("user.list.paging.lookahead", 0);
+		EventTrackingService.addObserver(this);
+	}
+
+	/**
+	 * Stop following the user events, as the webapp is going away.
+	 */
+	public void stop()
+	{
+		EventTrackingService.deleteObserver(this);
+	}
+
+	/**
+	 * @param search
+	 *        The search term, or null for all users.
+	 * @return The count, or null if there is no fresh count for the term.
+	 */
+	public Integer getCount(String search)
+	{
+		String key = key(search);
+		synchronized (counts)
+		{
+			Count count = counts.get(key);
+			if (count == null) return null;
+
+			if (count.expires < System.currentTimeMillis())
+			{
+				counts.remove(key);
+				return null;
+			}
+			return count.value;
+		}
+	}
+
+	/**
+	 * @param search
+	 *        The search term, or null for all users.
+	 * @param count
+	 *        The count that was just read from the directory.
+	 */
+	public void putCount(String search, int count)
+	{
+		if (ttl <= 0) return;
+
+		synchronized (counts)
+		{
+			counts.put(key(search), new Count(count, System.currentTimeMillis() + ttl));
+		}
+	}
+
+	/**
+	 * @return true if the list reads ahead, and keeps the pages in a window.
+	 */
+	public boolean isLookahead()
+	{
+		return lookahead > 0;
+	}
+
+	/**
+	 * @param windowId
+	 *        The id of the window kept from an earlier page, or null.
+	 * @param search
+	 *        The search term, or null for all users.
+	 * @param first
+	 *        The position of the first user on the page, from 1.
+	 * @param last
+	 *        The position of the last user on the page.
+	 * @return The users on the page, or null if the window is gone, out of date or does not hold the page.
+	 */
+	public List<User> getPage(String windowId, String search, int first, int last)
+	{
+		if (windowId == null) return null;
+
+		Window window;
+		synchronized (windows)
+		{
+			window = windows.get(windowId);
+		}
+		return (window == null) ? null : window.getPage(search, first, last, generation.get());
+	}
+
+	/**
+	 * @param first
+	 *        The position of the first user on the page, from 1.
+	 * @param last
+	 *        The position of the last user on the page.
+	 * @return The last position to read, so the window holds the page and the lookahead pages after it.
+	 */
+	public int getWindowEnd(int first, int last)
+	{
+		return first + (last - first + 1) * (lookahead + 1) - 1;
+	}
+
+	/**
+	 * @return The generation to read a window's users under, taken before they are read.
+	 */
+	public long getGeneration()
+	{
+		return generation.get();
+	}
+
+	/**
+	 * Keep the users read for a page, and the pages after it, as a window.
+	 *
+	 * @param windowId
+	 *        The id of the window kept from an earlier page, to replace, or null.
+	 * @param search
+	 *        The search term, or null for all users.
+	 * @param first
+	 *        The position of the first user read.
+	 * @param last
+	 *        The position of the last user asked for, from getWindowEnd().
+	 * @param users
+	 *        The users read.
+	 * @param generation
+	 *        The generation from getGeneration() before the users were read, so a change while they were read makes the window out of date.
+	 * @return The id of the window, to ask for the following pages with.
+	 */
+	public String putWindow(String windowId, String search, int first, int last, List<User> users, long generation)
+	{
+		if (windowId == null)
+		{
+			windowId = UUID.randomUUID().toString();
+		}
+
+		Window window = new Window(search, first, users, users.size() < (last - first + 1), generation);
+		synchronized (windows)
+		{
+			windows.put(windowId, window);
+		}
+		return windowId;
+	}
+
+	/**
+	 * Drop all the counts, and the windows read before now.
+	 */
+	public void clear()
+	{
+		generation.incrementAndGet();
+		synchronized (counts)
+		{
+			counts.clear();
+		}
+		synchronized (windows)
+		{
+			windows.clear();
+		}
+	}
+
+	/**
+	 * The directory searches ignore case, so the counts are shared across it.
+	 */
+	private String key(String search)
+	{
+		return (search == null) ? "" : search.toLowerCase();
+	}
+
+	public void update(Observable o, Object arg)
+	{
+		if (!(arg instanceof Event)) return;
+
+		String function = ((Event) arg).getEvent();
+		if (UserDirectoryService.SECURE_ADD_USER.equals(function) || UserDirectoryService.SECURE_REMOVE_USER.equals(function))
+		{
+			if (LOG.isDebugEnabled())
+			{
+				LOG.debug("update(): " + function + ", clearing user counts");
+			}
+			clear();
+		}
+		else if (UserDirectoryService.SECURE_UPDATE_USER_ANY.equals(function) || UserDirectoryService.SECURE_UPDATE_USER_OWN.equals(function))
+		{
+			// the counts still hold, but a window may show the old names
+			generation.incrementAndGet();
+		}
+	}
+}
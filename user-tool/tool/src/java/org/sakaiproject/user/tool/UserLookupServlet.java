@@ -0,0 +1,179 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.user.tool;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang.StringUtils;
+import org.sakaiproject.authz.cover.SecurityService;
+import org.sakaiproject.user.api.User;
+import org.sakaiproject.user.cover.UserDirectoryService;
+
+/**
+ * <p>
+ * UserLookupServlet answers the search as you type in the Users tool: GET lookup?q=prefix returns a JSON list of the users whose eid, email or
+ * sort name start with the prefix. The answers come from a UserPrefixIndex held in memory; until the index has loaded, the directory search is
+ * used instead, keeping only the users it finds that the index would, as the search also matches in the middle of a term. Only the super
+ * user, who is the only one that can use the Users list, gets an answer.
+ * </p>
+ */
+public class UserLookupServlet extends HttpServlet
+{
+	private static final long serialVersionUID = 1L;
+
+	/** The most users a lookup returns. */
+	private static final int MAX_RESULTS = 50;
+
+	private static final int DEFAULT_RESULTS = 10;
+
+	/** The most users read from the directory search for one lookup, before they are narrowed to the prefix matches. */
+	private static final int FALLBACK_READ = 200;
+
+	private UserPrefixIndex index;
+
+	public void init() throws ServletException
+	{
+		super.init();
+		index = new UserPrefixIndex();
+		index.start();
+	}
+
+	public void destroy()
+	{
+		index.stop();
+		super.destroy();
+	}
+
+	protected void doGet(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException
+	{
+		if (!SecurityService.isSuperUser())
+		{
+			res.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+
+		String prefix = StringUtils.trimToEmpty(req.getParameter("q"));
+		int max = DEFAULT_RESULTS;
+		try
+		{
+			max = Math.max(1, Math.min(MAX_RESULTS, Integer.parseInt(req.getParameter("max"))));
+		}
+		catch (NumberFormatException e)
+		{
+			// the default will do
+		}
+
+		res.setContentType("application/json");
+		res.setCharacterEncoding("UTF-8");
+		res.setHeader("Cache-Control", "no-cache");
+		PrintWriter out = res.getWriter();
+
+		out.print('[');
+		if (prefix.length() > 0)
+		{
+			if (index.isReady())
+			{
+				List<UserPrefixIndex.Entry> found = index.find(prefix, max);
+				for (int i = 0; i < found.size(); i++)
+				{
+					UserPrefixIndex.Entry entry = found.get(i);
+					if (i > 0) out.print(',');
+					print(out, entry.getId(), entry.getEid(), entry.getEmail(), entry.getSortName(), entry.getDisplayName());
+				}
+			}
+			else
+			{
+				int printed = 0;
+				for (User user : UserDirectoryService.searchUsers(prefix, 1, FALLBACK_READ))
+				{
+					if (!UserPrefixIndex.matches(user, prefix)) continue;
+
+					if (printed > 0) out.print(',');
+					print(out, user.getId(), user.getEid(), user.getEmail(), user.getSortName(), user.getDisplayName());
+					if (++printed >= max) break;
+				}
+			}
+		}
+		out.print(']');
+	}
+
+	private void print(PrintWriter out, String id, String eid, String email, String sortName, String displayName)
+	{
+		out.print("{\"id\":\"" + json(id) + "\",\"eid\":\"" + json(eid) + "\",\"email\":\"" + json(email) + "\",\"sortName\":\"" + json(sortName)
+				+ "\",\"displayName\":\"" + json(displayName) + "\"}");
+	}
+
+	/**
+	 * Escape a value for a JSON string: the quote, the backslash and the control characters, which JSON does not allow as they are. The line
+	 * and paragraph separators are escaped too, as JavaScript does not allow them in a string.
+	 */
+	private static String json(String value)
+	{
+		String s = StringUtils.trimToEmpty(value);
+		StringBuilder rv = new StringBuilder(s.length() + 16);
+		for (int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+			switch (c)
+			{
+				case '"':
+					rv.append("\\\"");
+					break;
+				case '\\':
+					rv.append("\\\\");
+					break;
+				case '\n':
+					rv.append("\\n");
+					break;
+				case '\r':
+					rv.append("\\r");
+					break;
+				case '\t':
+					rv.append("\\t");
+					break;
+				case '\b':
+					rv.append("\\b");
+					break;
+				case '\f':
+					rv.append("\\f");
+					break;
+				default:
+					if (c < 0x20 || c == '\u2028' || c == '\u2029')
+					{
+						rv.append(String.format("\\u%04x", (int) c));
+					}
+					else
+					{
+						rv.append(c);
+					}
+			}
+		}
+		return rv.toString();
+	}
+}
@@ -0,0 +1,409 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.user.tool;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.sakaiproject.component.cover.ComponentManager;
+import org.sakaiproject.entity.api.Entity;
+import org.sakaiproject.event.api.Event;
+import org.sakaiproject.event.cover.EventTrackingService;
+import org.sakaiproject.user.api.User;
+import org.sakaiproject.user.api.UserDirectoryService;
+import org.sakaiproject.user.api.UserNotDefinedException;
+
+/**
+ * <p>
+ * UserPrefixIndex is an in-memory index of the local users by the start of their eid, email and sort name, for search as you type. It is
+ * loaded from the directory a page at a time in the background, then kept up to date from the user events, so a lookup never goes to the
+ * database. Users that only exist in a provider can't be listed, so they are not in the index.
+ * </p>
+ * <p>
+ * The events that arrive while the index is loading are held back and applied once it has loaded, in the order they came, so a user removed
+ * or changed during the load is not put back as the older copy read by a later page. The directory can only be listed by offset, so each
+ * page after a removal is read from that many places earlier, as the users after it will have moved up; a user read twice is just put again.
+ * If the load fails it is tried again, after a minute and then at longer intervals up to half an hour, until it succeeds or the index is
+ * stopped.
+ * </p>
+ */
+public class UserPrefixIndex implements Observer
+{
+	/** Our log (commons). */
+	private static final Log LOG = LogFactory.getLog(UserPrefixIndex.class);
+
+	/** Separates the term from the user id in the index keys; it sorts before any character in a term. */
+	private static final char SEPARATOR = '\u0000';
+
+	/** The number of users read from the directory at a time while loading. */
+	private static final int LOAD_PAGE = 1000;
+
+	/** The wait before the first retry of a failed load, in ms; it doubles with each failure. */
+	private static final long RETRY_FIRST = 60L * 1000L;
+
+	/** The longest wait between retries, in ms. */
+	private static final long RETRY_MAX = 30L * 60L * 1000L;
+
+	/** User directory API */
+	private static UserDirectoryService uds = (UserDirectoryService) ComponentManager.get(UserDirectoryService.class);
+
+	private static final String USER_REFERENCE = UserDirectoryService.REFERENCE_ROOT + Entity.SEPARATOR;
+
+	/**
+	 * What the index keeps about a user, enough to show a match.
+	 */
+	public static class Entry
+	{
+		private final String id;
+		private final String eid;
+		private final String email;
+		private final String sortName;
+		private final String displayName;
+
+		Entry(User user)
+		{
+			id = user.getId();
+			eid = user.getEid();
+			email = user.getEmail();
+			sortName = user.getSortName();
+			displayName = user.getDisplayName();
+		}
+
+		public String getId()
+		{
+			return id;
+		}
+
+		public String getEid()
+		{
+			return eid;
+		}
+
+		public String getEmail()
+		{
+			return email;
+		}
+
+		public String getSortName()
+		{
+			return sortName;
+		}
+
+		public String getDisplayName()
+		{
+			return displayName;
+		}
+
+		/** @return The terms the user is found by, in lower case. */
+		Set<String> getTerms()
+		{
+			Set<String> terms = new LinkedHashSet<String>(3);
+			for (String term : new String[] { eid, email, sortName })
+			{
+				if (StringUtils.isNotBlank(term)) terms.add(term.trim().toLowerCase());
+			}
+			return terms;
+		}
+	}
+
+	/** The users in the index, by id. */
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	/** The terms, each followed by the separator and the id of the user it is for. */
+	private final ConcurrentSkipListSet<String> keys = new ConcurrentSkipListSet<String>();
+
+	private volatile boolean ready = false;
+
+	private volatile boolean stopped = false;
+
+	private Thread loader;
+
+	/** The events held back while loading, each a function and a user id. Guarded by itself. */
+	private final List<String[]> held = new LinkedList<String[]>();
+
+	/** true while loading, and the events are held back. Guarded by held. */
+	private boolean loading = true;
+
+	/** The users removed since the last page was read while loading. Guarded by held. */
+	private int removedDuringLoad = 0;
+
+	/**
+	 * Start keeping the index up to date, and load it in the background.
+	 */
+	public void start()
+	{
+		EventTrackingService.addObserver(this);
+
+		loader = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				load();
+			}
+		}, "UserPrefixIndex");
+		loader.setDaemon(true);
+		loader.start();
+	}
+
+	/**
+	 * Stop following the user events.
+	 */
+	public void stop()
+	{
+		stopped = true;
+		EventTrackingService.deleteObserver(this);
+		if (loader != null) loader.interrupt();
+	}
+
+	/**
+	 * @return true once the index holds all the local users.
+	 */
+	public boolean isReady()
+	{
+		return ready;
+	}
+
+	/**
+	 * Load the index, trying again after a while for as long as it fails.
+	 */
+	private void load()
+	{
+		long retry = RETRY_FIRST;
+		while (!stopped && !loadOnce())
+		{
+			LOG.info("load(): trying again in " + (retry / 1000L) + " s, lookups use the directory search meanwhile");
+			try
+			{
+				Thread.sleep(retry);
+			}
+			catch (InterruptedException e)
+			{
+				return;
+			}
+			retry = Math.min(retry * 2, RETRY_MAX);
+		}
+	}
+
+	/**
+	 * Read all the users into the index, holding the events back while it does.
+	 *
+	 * @return true if they were all read.
+	 */
+	private boolean loadOnce()
+	{
+		synchronized (held)
+		{
+			loading = true;
+			removedDuringLoad = 0;
+		}
+
+		long start = System.currentTimeMillis();
+		try
+		{
+			int first = 1;
+			while (true)
+			{
+				List<User> users = uds.getUsers(first, first + LOAD_PAGE - 1);
+				for (User user : users)
+				{
+					put(user);
+				}
+				if (users.size() < LOAD_PAGE) break;
+
+				// the users removed meanwhile may have moved the rest up past the next offset
+				int removed;
+				synchronized (held)
+				{
+					removed = removedDuringLoad;
+					removedDuringLoad = 0;
+				}
+				first += Math.max(1, LOAD_PAGE - removed);
+			}
+			ready = true;
+			LOG.info("load(): indexed " + entries.size() + " users in " + (System.currentTimeMillis() - start) + " ms");
+			return true;
+		}
+		catch (Exception e)
+		{
+			LOG.warn("load(): " + e.getClass() + ":" + e.getMessage());
+			return false;
+		}
+		finally
+		{
+			applyHeld();
+		}
+	}
+
+	/**
+	 * Apply the events held back while loading, until there are none left, then stop holding them back.
+	 */
+	private void applyHeld()
+	{
+		while (true)
+		{
+			List<String[]> events;
+			synchronized (held)
+			{
+				if (held.isEmpty())
+				{
+					loading = false;
+					return;
+				}
+				events = new ArrayList<String[]>(held);
+				held.clear();
+			}
+
+			for (String[] event : events)
+			{
+				apply(event[0], event[1]);
+			}
+		}
+	}
+
+	/**
+	 * Find the users whose eid, email or sort name starts with the prefix.
+	 *
+	 * @param prefix
+	 *        The start of the term, any case.
+	 * @param max
+	 *        The most users to return.
+	 * @return The users found, in the order of the terms they matched.
+	 */
+	public List<Entry> find(String prefix, int max)
+	{
+		List<Entry> rv = new ArrayList<Entry>();
+		String from = StringUtils.trimToEmpty(prefix).toLowerCase();
+		if (from.length() == 0) return rv;
+
+		Set<String> seen = new LinkedHashSet<String>();
+		for (String key : keys.subSet(from, true, from + Character.MAX_VALUE, true))
+		{
+			String id = key.substring(key.lastIndexOf(SEPARATOR) + 1);
+			if (!seen.add(id)) continue;
+
+			Entry entry = entries.get(id);
+			if (entry != null) rv.add(entry);
+			if (rv.size() >= max) break;
+		}
+		return rv;
+	}
+
+	/**
+	 * @param user
+	 *        A user.
+	 * @param prefix
+	 *        The start of the term, any case.
+	 * @return true if the user's eid, email or sort name starts with the prefix, as the index matches them.
+	 */
+	public static boolean matches(User user, String prefix)
+	{
+		String from = StringUtils.trimToEmpty(prefix).toLowerCase();
+		if (from.length() == 0) return false;
+
+		for (String term : new Entry(user).getTerms())
+		{
+			if (term.startsWith(from)) return true;
+		}
+		return false;
+	}
+
+	private void put(User user)
+	{
+		remove(user.getId());
+
+		Entry entry = new Entry(user);
+		entries.put(entry.getId(), entry);
+		for (String term : entry.getTerms())
+		{
+			keys.add(term + SEPARATOR + entry.getId());
+		}
+	}
+
+	private void remove(String id)
+	{
+		Entry entry = entries.remove(id);
+		if (entry == null) return;
+
+		for (String term : entry.getTerms())
+		{
+			keys.remove(term + SEPARATOR + id);
+		}
+	}
+
+	public void update(Observable o, Object arg)
+	{
+		if (!(arg instanceof Event)) return;
+
+		Event event = (Event) arg;
+		String function = event.getEvent();
+		String resource = event.getResource();
+		if (resource == null || !resource.startsWith(USER_REFERENCE)) return;
+
+		String id = resource.substring(USER_REFERENCE.length());
+		synchronized (held)
+		{
+			if (loading)
+			{
+				held.add(new String[] { function, id });
+				if (UserDirectoryService.SECURE_REMOVE_USER.equals(function)) removedDuringLoad++;
+				return;
+			}
+		}
+
+		apply(function, id);
+	}
+
+	/**
+	 * Bring the index up to date with a user event.
+	 */
+	private void apply(String function, String id)
+	{
+		if (UserDirectoryService.SECURE_REMOVE_USER.equals(function))
+		{
+			remove(id);
+		}
+		else if (UserDirectoryService.SECURE_ADD_USER.equals(function)
+				|| UserDirectoryService.SECURE_UPDATE_USER_ANY.equals(function)
+				|| UserDirectoryService.SECURE_UPDATE_USER_OWN.equals(function))
+		{
+			try
+			{
+				put(uds.getUser(id));
+			}
+			catch (UserNotDefinedException e)
+			{
+				remove(id);
+			}
+		}
+	}
+}
@@ -0,0 +1,300 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.user.tool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.sakaiproject.authz.api.AuthzGroup;
+import org.sakaiproject.authz.cover.AuthzGroupService;
+import org.sakaiproject.component.cover.ServerConfigurationService;
+import org.sakaiproject.tool.api.Session;
+import org.sakaiproject.tool.cover.SessionManager;
+import org.sakaiproject.user.api.UserEdit;
+import org.sakaiproject.user.api.UserLockedException;
+import org.sakaiproject.user.api.UserNotDefinedException;
+import org.sakaiproject.user.api.UserPermissionException;
+import org.sakaiproject.user.cover.UserDirectoryService;
+
+/**
+ * <p>
+ * UserRemoval deletes a user, first taking them out of every realm they are a member of when that is asked for. The realms are split into
+ * batches which are saved in parallel on a small, bounded pool of workers, rather than one after another inside the request. The caller can
+ * wait for a while; if the removal takes longer it carries on in the background. The outcome for each realm is kept, and the user is removed
+ * once all the realms are done. Only the user's id is held while the realms are done; the user is taken for edit just before it is removed,
+ * so no edit lock is held, nor an edit left to be closed by the caller, while the removal runs.
+ * </p>
+ */
+public class UserRemoval
+{
+	/** Our log (commons). */
+	private static final Log LOG = LogFactory.getLog(UserRemoval.class);
+
+	/** The number of realms handed to a worker at a time. */
+	private static final int BATCH_SIZE = Math.max(1, ServerConfigurationService.getInt("user.unenroll.batch.size", 25));
+
+	/** The workers shared by all removals. */
+	private static final ExecutorService WORKERS = UserToolWorkers.newPool("UserRemoval", ServerConfigurationService.getInt("user.unenroll.threads", 4));
+
+	private final String userId;
+	private final String userEid;
+	private final Session session;
+	private final List<String> realms;
+
+	/** The realms the user could not be taken out of, and why. */
+	private final SortedMap<String, String> failures = Collections.synchronizedSortedMap(new TreeMap<String, String>());
+
+	private final AtomicInteger unenrolled = new AtomicInteger();
+
+	/** The batches not yet done, the user is removed when it reaches 0. */
+	private final AtomicInteger batches = new AtomicInteger();
+
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	private volatile boolean removed = false;
+	private volatile String removeFailure = null;
+
+	private UserRemoval(String userId, String userEid, List<String> realms, Session session)
+	{
+		this.userId = userId;
+		this.userEid = userEid;
+		this.realms = realms;
+		this.session = session;
+	}
+
+	/**
+	 * Start removing a user, as the current session's user.
+	 *
+	 * @param userId
+	 *        The user's id. The caller must not be holding the user for edit.
+	 * @param userEid
+	 *        The user's eid, for the log.
+	 * @param unenroll
+	 *        true to take the user out of their realms first.
+	 * @return The removal, under way, or already failed if the current user can't remove the user.
+	 */
+	public static UserRemoval start(String userId, String userEid, boolean unenroll)
+	{
+		// nobody is taken out of their realms unless they can then be removed
+		if (!UserDirectoryService.allowRemoveUser(userId))
+		{
+			UserRemoval removal = new UserRemoval(userId, userEid, new ArrayList<String>(), SessionManager.getCurrentSession());
+			removal.removeFailure = UserPermissionException.class.getSimpleName();
+			removal.done.countDown();
+			return removal;
+		}
+
+		List<String> realms = new ArrayList<String>();
+		if (unenroll)
+		{
+			Map<String, String> userRoles = AuthzGroupService.getUserRoles(userId, null);
+			realms.addAll(userRoles.keySet());
+		}
+
+		UserRemoval removal = new UserRemoval(userId, userEid, realms, SessionManager.getCurrentSession());
+		removal.submit();
+		return removal;
+	}
+
+	private void submit()
+	{
+		if (realms.isEmpty())
+		{
+			remove();
+			return;
+		}
+
+		List<List<String>> chunks = new ArrayList<List<String>>();
+		for (int i = 0; i < realms.size(); i += BATCH_SIZE)
+		{
+			chunks.add(realms.subList(i, Math.min(i + BATCH_SIZE, realms.size())));
+		}
+
+		batches.set(chunks.size());
+		for (final List<String> chunk : chunks)
+		{
+			WORKERS.execute(UserToolWorkers.asUser(session, new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						unenroll(chunk);
+					}
+					finally
+					{
+						if (batches.decrementAndGet() == 0)
+						{
+							remove();
+						}
+					}
+				}
+			}));
+		}
+	}
+
+	private void unenroll(List<String> chunk)
+	{
+		for (String realm : chunk)
+		{
+			try
+			{
+				AuthzGroup realmEdit = AuthzGroupService.getAuthzGroup(realm);
+				realmEdit.removeMember(userId);
+				AuthzGroupService.save(realmEdit);
+				unenrolled.incrementAndGet();
+				LOG.info("User " + userEid + " removed from realm " + realm);
+			}
+			catch (Exception e)
+			{
+				LOG.error("Could not remove user " + userEid + " from realm " + realm + ": " + e.getClass() + ":" + e.getMessage());
+				failures.put(realm, e.getClass().getSimpleName());
+			}
+		}
+	}
+
+	private void remove()
+	{
+		try
+		{
+			UserEdit user = UserDirectoryService.editUser(userId);
+			UserDirectoryService.removeUser(user);
+			removed = true;
+
+			// tracking information
+			LOG.info("User " + userEid + " has been deleted by " + UserDirectoryService.getCurrentUser().getEid() + ". The internal ID was "
+					+ userId + ". Unenrolled from " + unenrolled.get() + " of " + realms.size() + " realms.");
+		}
+		catch (UserNotDefinedException e)
+		{
+			removeFailure = e.getClass().getSimpleName();
+			LOG.warn("Could not delete user " + userEid + ": " + e.getClass() + ":" + e.getMessage());
+		}
+		catch (UserLockedException e)
+		{
+			removeFailure = e.getClass().getSimpleName();
+			LOG.warn("Could not delete user " + userEid + ": " + e.getClass() + ":" + e.getMessage());
+		}
+		catch (UserPermissionException e)
+		{
+			removeFailure = e.getClass().getSimpleName();
+			LOG.warn("Could not delete user " + userEid + ": " + e.getClass() + ":" + e.getMessage());
+		}
+		catch (RuntimeException e)
+		{
+			removeFailure = e.getClass().getSimpleName();
+			LOG.warn("Could not delete user " + userEid + ": " + e.getClass() + ":" + e.getMessage());
+		}
+		finally
+		{
+			done.countDown();
+		}
+	}
+
+	/**
+	 * Wait for the removal to finish.
+	 *
+	 * @param millis
+	 *        The longest to wait.
+	 * @return true if it has finished.
+	 */
+	public boolean await(long millis)
+	{
+		try
+		{
+			return done.await(millis, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return isDone();
+		}
+	}
+
+	public boolean isDone()
+	{
+		return done.getCount() == 0;
+	}
+
+	public String getUserId()
+	{
+		return userId;
+	}
+
+	public String getUserEid()
+	{
+		return userEid;
+	}
+
+	/**
+	 * @return The number of realms the user was in.
+	 */
+	public int getRealmCount()
+	{
+		return realms.size();
+	}
+
+	/**
+	 * @return The number of realms the user has been taken out of so far.
+	 */
+	public int getUnenrolled()
+	{
+		return unenrolled.get();
+	}
+
+	/**
+	 * @return The realms the user could not be taken out of, with the reason, by realm.
+	 */
+	public SortedMap<String, String> getFailures()
+	{
+		synchronized (failures)
+		{
+			return new TreeMap<String, String>(failures);
+		}
+	}
+
+	/**
+	 * @return true once the user has been deleted.
+	 */
+	public boolean isRemoved()
+	{
+		return removed;
+	}
+
+	/**
+	 * @return Why the user could not be deleted, or null.
+	 */
+	public String getRemoveFailure()
+	{
+		return removeFailure;
+	}
+}
@@ -0,0 +1,149 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.user.tool;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.component.api.ServerConfigurationService.ConfigItem;
+import org.sakaiproject.component.api.ServerConfigurationService.ConfigurationListener;
+
+/**
+ * <p>
+ * UserToolConfig holds the configuration the user forms read on every post: the optional attributes with their display names, and the user
+ * types that come from a provider. It is read once into an unmodifiable snapshot, which is only read again when one of the properties it is
+ * built from changes. The configuration service has no way to take a listener off, so once unregistered it ignores the changes.
+ * </p>
+ */
+public class UserToolConfig implements ConfigurationListener
+{
+	/** Our log (commons). */
+	private static final Log LOG = LogFactory.getLog(UserToolConfig.class);
+
+	private static final String ATTRIBUTE_CONFIG = "user.additional.attribute";
+	private static final String PROVIDED_CONFIG = "user.type.provided";
+
+	private final ServerConfigurationService config;
+
+	private volatile Map<String, String> optionalAttributes;
+	private volatile Set<String> providedTypes;
+
+	/** Set once unregistered, after which configuration changes are ignored. */
+	private volatile boolean unregistered = false;
+
+	/**
+	 * Read the configuration and follow its changes.
+	 *
+	 * @param config
+	 *        The configuration.
+	 */
+	public UserToolConfig(ServerConfigurationService config)
+	{
+		this.config = config;
+		load();
+		config.registerListener(this);
+	}
+
+	private void load()
+	{
+		Map<String, String> atts = new LinkedHashMap<String, String>();
+		String[] keys = config.getStrings(ATTRIBUTE_CONFIG);
+		if (keys != null)
+		{
+			for (String key : keys)
+			{
+				if (!key.isEmpty())
+				{
+					atts.put(key, config.getString(ATTRIBUTE_CONFIG + ".display." + key, key));
+				}
+			}
+		}
+
+		Set<String> types = new HashSet<String>();
+		String[] provided = config.getStrings(PROVIDED_CONFIG);
+		if (provided != null)
+		{
+			types.addAll(Arrays.asList(provided));
+		}
+
+		optionalAttributes = Collections.unmodifiableMap(atts);
+		providedTypes = Collections.unmodifiableSet(types);
+	}
+
+	/**
+	 * @return The optional attributes, by property name, with their display names, in the configured order.
+	 */
+	public Map<String, String> getOptionalAttributes()
+	{
+		return optionalAttributes;
+	}
+
+	/**
+	 * @return The user types that come from a provider.
+	 */
+	public Set<String> getProvidedTypes()
+	{
+		return providedTypes;
+	}
+
+	/**
+	 * @param type
+	 *        A user type.
+	 * @return true if users of the type come from a provider.
+	 */
+	public boolean isProvidedType(String type)
+	{
+		return type != null && providedTypes.contains(type);
+	}
+
+	/**
+	 * Stop following the configuration, as the tool is going away. The snapshot already read can still be used.
+	 */
+	public void unregister()
+	{
+		unregistered = true;
+	}
+
+	public ConfigItem changing(ConfigItem currentConfigItem, ConfigItem newConfigItem)
+	{
+		return null;
+	}
+
+	public void changed(ConfigItem configItem, ConfigItem previousConfigItem)
+	{
+		if (unregistered) return;
+
+		if (configItem != null && configItem.getName() != null
+				&& (configItem.getName().startsWith(ATTRIBUTE_CONFIG) || configItem.getName().startsWith(PROVIDED_CONFIG)))
+		{
+			LOG.debug("changed(): " + configItem.getName() + ", reading the user tool configuration again");
+			load();
+		}
+	}
+}
@@ -0,0 +1,52 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+
+package org.sakaiproject.user.tool;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>
+ * UserToolContextListener stops the work the Users tool shares across its servlets when the webapp goes away. UsersAction is registered as
+ * several tools, each its own servlet, so the shared state can't be torn down when any one of them is destroyed.
+ * </p>
+ */
+public class UserToolContextListener implements ServletContextListener
+{
+	/** Our log (commons). */
+	private static final Log LOG = LogFactory.getLog(UserToolContextListener.class);
+
+	public void contextInitialized(ServletContextEvent event)
+	{
+	}
+
+	public void contextDestroyed(ServletContextEvent event)
+	{
+		LOG.debug("contextDestroyed(): stopping the shared background work");
+		ImportedUserValidator.shutdown();
+		UsersAction.destroyShared();
+	}
+}
@@ -0,0 +1,102 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2014 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.user.tool;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.sakaiproject.thread_local.cover.ThreadLocalManager;
+import org.sakaiproject.tool.api.Session;
+import org.sakaiproject.tool.cover.SessionManager;
+
+/**
+ * <p>
+ * UserToolWorkers holds the plumbing shared by the Users tool's background work: small, bounded pools of daemon threads, and running a task on
+ * one of them as the user whose request started it.
+ * </p>
+ */
+public class UserToolWorkers
+{
+	private UserToolWorkers()
+	{
+	}
+
+	/**
+	 * Create a pool. Its threads go away when there is nothing to do.
+	 *
+	 * @param name
+	 *        The name for the threads.
+	 * @param threads
+	 *        The most threads to run at once.
+	 * @return The pool.
+	 */
+	public static ExecutorService newPool(final String name, int threads)
+	{
+		threads = Math.max(1, threads);
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory()
+				{
+					private final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(Runnable r)
+					{
+						Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	 * Wrap a task so it runs as the user of a session, and leaves nothing behind on the thread.
+	 *
+	 * @param session
+	 *        The session of the user that started the work.
+	 * @param task
+	 *        The work.
+	 * @return The task to hand to a pool or thread.
+	 */
+	public static Runnable asUser(final Session session, final Runnable task)
+	{
+		return new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					SessionManager.setCurrentSession(session);
+					task.run();
+				}
+				finally
+				{
+					ThreadLocalManager.clear();
+				}
+			}
+		};
+	}
+}
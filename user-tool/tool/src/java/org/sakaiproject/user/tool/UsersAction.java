@@ -21,13 +21,17 @@
 
 package org.sakaiproject.user.tool;
 
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -38,8 +42,6 @@ import net.tanesha.recaptcha.ReCaptchaResponse;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.validator.routines.EmailValidator;
-import org.sakaiproject.authz.api.AuthzGroup;
-import org.sakaiproject.authz.cover.AuthzGroupService;
 import org.sakaiproject.authz.cover.SecurityService;
 import org.sakaiproject.cheftool.Context;
 import org.sakaiproject.cheftool.ControllerState;
@@ -84,6 +86,7 @@ import org.sakaiproject.user.cover.UserDirectoryService;
 import org.sakaiproject.user.tool.PasswordPolicyHelper.TempUser;
 import org.sakaiproject.util.BaseResourcePropertiesEdit;
 import org.sakaiproject.util.ExternalTrustedEvidence;
+import org.sakaiproject.util.FileItem;
 import org.sakaiproject.util.RequestFilter;
 import org.sakaiproject.util.ResourceLoader;
 import org.sakaiproject.util.StringUtil;
@@ -103,14 +106,6 @@ public class UsersAction extends PagedResourceActionII
 	//private static final String XLS_MIME_TYPE="application/vnd.ms-excel";
 	private static final String CSV_MIME_TYPE="text/csv";
 	
-	//the column headings in the imported file, which will be used as the primary user attributes
-	private static final String IMPORT_USER_ID="user id";
-	private static final String IMPORT_FIRST_NAME="first name";
-	private static final String IMPORT_LAST_NAME="last name";
-	private static final String IMPORT_EMAIL="email";
-	private static final String IMPORT_PASSWORD="password";
-	private static final String IMPORT_TYPE="type";
-
 	// SAK-23568
 	private static final PasswordPolicyHelper pwHelper = new PasswordPolicyHelper();
 	private static final String MSG_KEY_PASSWORD_WEAK = "pw.weak";
@@ -118,6 +113,45 @@ public class UsersAction extends PagedResourceActionII
 
 	private static final String SAK_PROP_UNENROLL_BEFORE_DELETE = "user.unenroll.before.delete";
 
+	/** The optional attributes and provided types, read again only when they change. */
+	private static final UserToolConfig toolConfig = new UserToolConfig(ServerConfigurationService.getInstance());
+
+	/** The user counts behind the list paging. */
+	private static final UserListCache listCache = new UserListCache();
+
+	/** State attribute for the uploaded file waiting to be imported. */
+	private static final String STATE_IMPORT_FILE = "importedUsers";
+
+	/** State attribute for the id of the running import. */
+	private static final String STATE_IMPORT_JOB = "importJob";
+
+	/** State attribute for the id of the window of users read ahead of the current page, which is kept by the list cache. */
+	private static final String STATE_PAGE_WINDOW = "pageWindow";
+
+	/** State attribute set once the form has changed the user being edited. */
+	private static final String STATE_USER_CHANGED = "userChanged";
+
+	/** Thread local for the edit permission decisions made in this request, by user id. */
+	private static final String TL_EDIT_DECISIONS = UsersAction.class.getName() + ".editDecisions";
+
+	/** State attribute for the id of the running bulk removal. */
+	private static final String STATE_BULK_REMOVE_JOB = "bulkRemoveJob";
+
+	/** State attribute for the eids found in the directory, waiting for the bulk removal to be confirmed. */
+	private static final String STATE_BULK_REMOVE_EIDS = "bulkRemoveEids";
+
+	/** State attribute for the eids not found in the directory, shown with the confirmation. */
+	private static final String STATE_BULK_REMOVE_UNKNOWN = "bulkRemoveUnknown";
+
+	/**
+	 * Stop what all the tool's servlets share, as the webapp is going away (see UserToolContextListener).
+	 */
+	static void destroyShared()
+	{
+		toolConfig.unregister();
+		listCache.stop();
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -126,6 +160,31 @@ public class UsersAction extends PagedResourceActionII
 		// search?
 		String search = StringUtils.trimToNull((String) state.getAttribute(STATE_SEARCH));
 
+		if (!listCache.isLookahead())
+		{
+			return readUsers(search, first, last);
+		}
+
+		// the page may have been read ahead with an earlier one
+		String windowId = (String) state.getAttribute(STATE_PAGE_WINDOW);
+		List<User> page = listCache.getPage(windowId, search, first, last);
+		if (page == null)
+		{
+			int end = listCache.getWindowEnd(first, last);
+			long generation = listCache.getGeneration();
+			List<User> users = readUsers(search, first, end);
+			state.setAttribute(STATE_PAGE_WINDOW, listCache.putWindow(windowId, search, first, end, users, generation));
+			page = new ArrayList<User>(users.subList(0, Math.min(last - first + 1, users.size())));
+		}
+
+		return page;
+	}
+
+	/**
+	 * Read a run of users from the directory.
+	 */
+	private List<User> readUsers(String search, int first, int last)
+	{
 		if (search != null)
 		{
 			return UserDirectoryService.searchUsers(search, first, last);
@@ -142,12 +201,16 @@ public class UsersAction extends PagedResourceActionII
 		// search?
 		String search = StringUtils.trimToNull((String) state.getAttribute(STATE_SEARCH));
 
-		if (search != null)
+		// a recent count will do, it is dropped when users are added or removed
+		Integer count = listCache.getCount(search);
+		if (count != null)
 		{
-			return UserDirectoryService.countSearchUsers(search);
+			return count.intValue();
 		}
 
-		return UserDirectoryService.countUsers();
+		int size = (search != null) ? UserDirectoryService.countSearchUsers(search) : UserDirectoryService.countUsers();
+		listCache.putCount(search, size);
+		return size;
 	}
 
 	/**
@@ -257,7 +320,7 @@ public class UsersAction extends PagedResourceActionII
 	    state.removeAttribute("successMessage");
 
 		// SAK-23568
-		pwHelper.addJavaScriptParamsToContext(context);
+		pwHelper.addJavaScriptParamsToContext(context, getServletContext().getContextPath() + "/password");
 
 		// check mode and dispatch
 		String mode = (String) state.getAttribute("mode");
@@ -296,6 +359,10 @@ public class UsersAction extends PagedResourceActionII
 		{
 			template = buildImportContext(state, context);
 		}
+		else if (mode.equals("bulkremove"))
+		{
+			template = buildBulkRemoveContext(state, context);
+		}
 		else if (mode.equals("mode_helper") && StringUtils.equals(status, "processImport")) {
 			//returning from helper after uploading file
 			template = buildProcessImportContext(state, rundata, context);
@@ -320,7 +387,11 @@ public class UsersAction extends PagedResourceActionII
 		context.put("service", UserDirectoryService.getInstance());
 
 		// put all (internal) users into the context
-		context.put("users", prepPage(state));
+		List<User> users = prepPage(state);
+		context.put("users", users);
+
+		// and which of them can be edited, worked out here rather than row by row in the template
+		context.put("editableUsers", getEditableUsers(users));
 
 		// build the menu
 		Menu bar = new MenuImpl();
@@ -329,6 +400,10 @@ public class UsersAction extends PagedResourceActionII
 			bar.add(new MenuEntry(rb.getString("useact.newuse"), null, true, MenuItem.CHECKED_NA, "doNew"));
 			bar.add(new MenuEntry(rb.getString("import.user.file"), null, true, MenuItem.CHECKED_NA, "doImport"));
 		}
+		if (SecurityService.isSuperUser())
+		{
+			bar.add(new MenuEntry(rb.getString("remove.bulk.menu"), null, true, MenuItem.CHECKED_NA, "doBulkRemove"));
+		}
 
 		// add the paging commands
 		//addListPagingMenus(bar, state);
@@ -380,6 +455,64 @@ public class UsersAction extends PagedResourceActionII
 
 	} // buildListContext
 
+	/**
+	 * Work out which users on the page the current user can edit.
+	 * 
+	 * @param users
+	 *        The users on the page.
+	 * @return The ids of the users that can be edited.
+	 */
+	private Set<String> getEditableUsers(List<User> users)
+	{
+		Set<String> editable = new HashSet<String>();
+
+		// the super user can edit anyone, there is nothing to check
+		if (SecurityService.isSuperUser())
+		{
+			for (User user : users)
+			{
+				editable.add(user.getId());
+			}
+			return editable;
+		}
+
+		for (User user : users)
+		{
+			if (canEditUser(user.getId()))
+			{
+				editable.add(user.getId());
+			}
+		}
+		return editable;
+
+	} // getEditableUsers
+
+	/**
+	 * Check if the current user can edit a user, remembering the answer for the rest of the request.
+	 * 
+	 * @param id
+	 *        The user id.
+	 * @return true if the user can be edited.
+	 */
+	private boolean canEditUser(String id)
+	{
+		Map<String, Boolean> decisions = (Map<String, Boolean>) ThreadLocalManager.get(TL_EDIT_DECISIONS);
+		if (decisions == null)
+		{
+			decisions = new HashMap<String, Boolean>();
+			ThreadLocalManager.set(TL_EDIT_DECISIONS, decisions);
+		}
+
+		Boolean decision = decisions.get(id);
+		if (decision == null)
+		{
+			decision = Boolean.valueOf(UserDirectoryService.allowUpdateUser(id));
+			decisions.put(id, decision);
+		}
+		return decision.booleanValue();
+
+	} // canEditUser
+
 	/**
 	 * Build the context for the new user mode.
 	 */
@@ -548,22 +681,11 @@ public class UsersAction extends PagedResourceActionII
 
 			state.setAttribute("mode", "view");
 
-			// make sure we can do an edit
-			try
+			// make sure we can do an edit, a permission check only, the lock is taken when the edit starts
+			if (canEditUser(id))
 			{
-				UserEdit edit = UserDirectoryService.editUser(id);
-				UserDirectoryService.cancelEdit(edit);
 				context.put("enableEdit", "true");
 			}
-			catch (UserNotDefinedException e)
-			{
-			}
-			catch (UserPermissionException e)
-			{
-			}
-			catch (UserLockedException e)
-			{
-			}
 
 			// disable auto-updates while not in list mode
 			disableObservers(state);
@@ -641,11 +763,62 @@ public class UsersAction extends PagedResourceActionII
 	 */
 	private String buildImportContext(SessionState state, Context context) {
 		
+		//an import that has been started, show how it is getting on
+		UserImportJob job = UserImportJob.get((String) state.getAttribute(STATE_IMPORT_JOB));
+		if (job != null) {
+			context.put("importJob", job);
+			context.put("importProgress", new Object[]{job.getCreated(), job.getUpdated(), job.getSkipped(), job.getFailed(), job.getPending(), job.getTotal()});
+		} else {
+			//an upload waiting to be confirmed
+			ImportedUserFile importedFile = (ImportedUserFile) state.getAttribute(STATE_IMPORT_FILE);
+			if (importedFile != null && !importedFile.isAvailable()) {
+				//uploaded to another server, or before a restart
+				addAlert(state, rb.getString("import.error.lost"));
+				discardImportedFile(state);
+			} else if (importedFile != null) {
+				putImportedFileSample(importedFile, context);
+			}
+		}
+
+		//existing users are either skipped or updated
+		context.put("importUpdateExisting", Boolean.valueOf(UserImportJob.isUpdateExisting()));
+
 		//render the template		
 		return "_import";
 
 	} // buildImportContext
 	
+	/**
+	 * Build the context for the bulk removal mode.
+	 */
+	private String buildBulkRemoveContext(SessionState state, Context context)
+	{
+		// a removal that has been started, show how it is getting on
+		BulkRemovalJob job = BulkRemovalJob.get((String) state.getAttribute(STATE_BULK_REMOVE_JOB));
+		if (job != null)
+		{
+			context.put("removeJob", job);
+			context.put("removeProgress", new Object[] { job.getRemoved(), job.getNotFound(), job.getFailed(), job.getPending(), job.getTotal() });
+		}
+		else
+		{
+			// users read from the form, waiting to be confirmed
+			List<String> eids = (List<String>) state.getAttribute(STATE_BULK_REMOVE_EIDS);
+			if (eids != null)
+			{
+				List<String> unknown = (List<String>) state.getAttribute(STATE_BULK_REMOVE_UNKNOWN);
+				context.put("removeEids", eids);
+				context.put("removeUnknown", unknown);
+				context.put("removeCount", new Object[] { eids.size() });
+				context.put("removeUnknownCount", new Object[] { unknown.size() });
+			}
+		}
+		context.put("unenrollFirst", Boolean.valueOf(isUnenrollBeforeDeleteEnabled()));
+
+		return "_bulk_remove";
+
+	} // buildBulkRemoveContext
+
 	/**
 	 * Build the context for processing the files
 	 */
@@ -683,55 +856,96 @@ public class UsersAction extends PagedResourceActionII
 	} // doNew
 
 	/**
-	 * doImport called when "eventSubmit_doImport" is clicked. This actuall imports the users that were uploaded.
+	 * doImport called when "eventSubmit_doImport" is clicked. This starts the import of the users that were uploaded, which carries on in the background.
 	 */
 	public void doImport(RunData data, Context context)
 	{
 		SessionState state = ((JetspeedRunData) data).getPortletSessionState(((JetspeedRunData) data).getJs_peid());
-		UsersActionState sstate = (UsersActionState)getState(context, data, UsersActionState.class);
 		
 		state.setAttribute("mode", "import");
 				
 		Log.debug("chef", "doImport");
+		
+		//already started, the page just shows the progress
+		if (UserImportJob.get((String) state.getAttribute(STATE_IMPORT_JOB)) != null) {
+			return;
+		}
 			
-		List<ImportedUser> users = (List<ImportedUser>)state.getAttribute("importedUsers");
-		if(users !=null && users.size() > 0) {
+		ImportedUserFile importedFile = (ImportedUserFile) state.getAttribute(STATE_IMPORT_FILE);
+		if(importedFile != null && !importedFile.isAvailable()) {
+			//uploaded to another server, or before a restart
+			addAlert(state, rb.getString("import.error.lost"));
+			discardImportedFile(state);
+			return;
+		}
+		if(importedFile != null && importedFile.size() > 0) {
 		
-			for(ImportedUser user: users) {
-				try {
-					User newUser = UserDirectoryService.addUser(null, user.getEid(), user.getFirstName(), user.getLastName(), user.getEmail(), user.getPassword(), user.getType(), user.getProperties());
-				}
-				catch (UserAlreadyDefinedException e){
-					//ok, just skip
-					continue;
-				}
-				catch (UserIdInvalidException e) {
-					addAlert(state, rb.getString("useact.theuseid2") + ": " + user.getEid());
-					Log.error("chef", "Import user error: " + e.getClass() + ":" + e.getMessage());
-					//try to import the rest
-					continue;
-				}
-				catch (UserPermissionException e){
-					addAlert(state, rb.getString("useact.youdonot3"));
-					Log.error("chef", "Import user error: " + e.getClass() + ":" + e.getMessage());
-					//this is bad so return
-					return;
-				} 
+			if (!UserDirectoryService.allowAddUser()) {
+				addAlert(state, rb.getString("useact.youdonot3"));
+				return;
 			}
+
+			UserImportJob job = UserImportJob.start(importedFile);
+			state.setAttribute(STATE_IMPORT_JOB, job.getId());
 			
-			//set a message to show it was successful
-			state.setAttribute("successMessage", rb.getString("import.success"));
-			
-			//cleanup
-			state.removeAttribute("importedUsers");
-			state.removeAttribute("mode");
-			
-			// make sure auto-updates are enabled
-			enableObserver(state);
+			//the job has the file now
+			state.removeAttribute(STATE_IMPORT_FILE);
 		}
 		
 	} // doImport
 	
+	/**
+	 * doResumeImport called when "eventSubmit_doResumeImport" is clicked, to carry on with an import that stopped early.
+	 */
+	public void doResumeImport(RunData data, Context context)
+	{
+		SessionState state = ((JetspeedRunData) data).getPortletSessionState(((JetspeedRunData) data).getJs_peid());
+		
+		if (!"POST".equals(data.getRequest().getMethod())) {
+			return;
+		}
+		
+		UserImportJob job = UserImportJob.get((String) state.getAttribute(STATE_IMPORT_JOB));
+		if (job == null) {
+			state.removeAttribute("mode");
+			return;
+		}
+		
+		if (!UserDirectoryService.allowAddUser()) {
+			addAlert(state, rb.getString("useact.youdonot3"));
+			return;
+		}
+		
+		job.resume();
+		
+	} // doResumeImport
+	
+	/**
+	 * doFinishImport called when "eventSubmit_doFinishImport" is clicked, once the user has seen how the import went.
+	 */
+	public void doFinishImport(RunData data, Context context)
+	{
+		SessionState state = ((JetspeedRunData) data).getPortletSessionState(((JetspeedRunData) data).getJs_peid());
+		
+		if (!"POST".equals(data.getRequest().getMethod())) {
+			return;
+		}
+		
+		UserImportJob job = UserImportJob.get((String) state.getAttribute(STATE_IMPORT_JOB));
+		if (job != null && job.isRunning()) {
+			//nothing to finish yet
+			return;
+		}
+		
+		//set a message to show it was successful
+		if (job != null && job.getFailed() == 0 && job.getPending() == 0) {
+			state.setAttribute("successMessage", rb.getString("import.success"));
+		}
+		
+		doCancelImport(data, context);
+		
+	} // doFinishImport
+	
 	
 	
 	/**
@@ -742,6 +956,7 @@ public class UsersAction extends PagedResourceActionII
 		SessionState state = ((JetspeedRunData) data).getPortletSessionState(((JetspeedRunData) data).getJs_peid());
 		String id = data.getParameters().getString("id");
 		state.removeAttribute("user");
+		state.removeAttribute(STATE_USER_CHANGED);
 		state.removeAttribute("newuser");
 
 		// get the user
@@ -797,6 +1012,7 @@ public class UsersAction extends PagedResourceActionII
 		SessionState state = ((JetspeedRunData) data).getPortletSessionState(((JetspeedRunData) data).getJs_peid());
 		String id = data.getParameters().getString("id");
 		state.removeAttribute("user");
+		state.removeAttribute(STATE_USER_CHANGED);
 		state.removeAttribute("newuser");
 
 		// get the user
@@ -853,9 +1069,13 @@ public class UsersAction extends PagedResourceActionII
 		// read the form - if rejected, leave things as they are
 		if (!readUserForm(data, state)) return;
 
-		// commit the change
+		// commit the change, or just let go of the user if nothing was changed
 		UserEdit edit = (UserEdit) state.getAttribute("user");
-		if (edit != null)
+		if (edit != null && state.getAttribute(STATE_USER_CHANGED) == null)
+		{
+			UserDirectoryService.cancelEdit(edit);
+		}
+		else if (edit != null)
 		{
 			try
 			{
@@ -878,6 +1098,7 @@ public class UsersAction extends PagedResourceActionII
 
 		// cleanup
 		state.removeAttribute("user");
+		state.removeAttribute(STATE_USER_CHANGED);
 		state.removeAttribute("newuser");
 		state.removeAttribute("new");
 		state.removeAttribute("valueEid");
@@ -979,7 +1200,9 @@ public class UsersAction extends PagedResourceActionII
 		}
 		
 		//cleanup session
-		state.removeAttribute("importedUsers");
+		discardImportedFile(state);
+		UserImportJob.remove((String) state.getAttribute(STATE_IMPORT_JOB));
+		state.removeAttribute(STATE_IMPORT_JOB);
 		
 		//also cleanup our state handler (I think this should be combined into SessionState)
 		UsersActionState sstate = (UsersActionState)getState(context, data, UsersActionState.class);
@@ -1023,43 +1246,28 @@ public class UsersAction extends PagedResourceActionII
 			return;
 		}
 
-		// get the user
+		// get the user, and let go of the edit, the removal takes the user for edit itself once the realms are done
 		UserEdit user = (UserEdit) state.getAttribute("user");
+		UserDirectoryService.cancelEdit(user);
 
-		// unenroll the user from all AuthzGroups (if enabled)
-		String userId = user.getId();
-		String userEid = user.getEid();
-		if (isUnenrollBeforeDeleteEnabled())
+		// unenroll the user from all AuthzGroups (if enabled), in parallel batches, then remove the user
+		UserRemoval removal = UserRemoval.start(user.getId(), user.getEid(), isUnenrollBeforeDeleteEnabled());
+		if (removal.await(ServerConfigurationService.getInt("user.unenroll.wait", 20) * 1000L))
 		{
-			Map<String, String> userRoles = AuthzGroupService.getUserRoles(userId, null);
-			for (String realm : userRoles.keySet())
+			for (String realm : removal.getFailures().keySet())
 			{
-				try
-				{
-					AuthzGroup realmEdit = AuthzGroupService.getAuthzGroup(realm);
-					realmEdit.removeMember(userId);
-					AuthzGroupService.save(realmEdit);
-					Log.info("chef", "User " + userEid + " removed from realm " + realm);
-				}
-				catch (Exception e)
-				{
-					Log.error("chef", "Could not remove user " + user.getEid() + " from realm " + realm);
-					addAlert(state, rb.getFormattedMessage("useact.couldnot", user.getEid(), realm));
-				}
+				addAlert(state, rb.getFormattedMessage("useact.couldnot", user.getEid(), realm));
+			}
+			if (!removal.isRemoved())
+			{
+				addAlert(state, rb.getFormattedMessage("useact.youdonot2", new Object[]{user.getId()}));
 			}
 		}
-
-		// remove the user
-		try
-		{
-			UserDirectoryService.removeUser(user);
-
-			// tracking information
-			Log.info("chef", "User " + userEid + " has been deleted by " + UserDirectoryService.getCurrentUser().getEid() + ". The internal ID was " + userId);
-		}
-		catch (UserPermissionException e)
+		else
 		{
-			addAlert(state, rb.getFormattedMessage("useact.youdonot2", new Object[]{user.getId()}));
+			// still going, the user is removed in the background once all the realms are done
+			state.setAttribute("successMessage", rb.getFormattedMessage("useact.removing", user.getEid(),
+					Integer.valueOf(removal.getUnenrolled()), Integer.valueOf(removal.getRealmCount())));
 		}
 
 		// cleanup
@@ -1096,6 +1304,243 @@ public class UsersAction extends PagedResourceActionII
 
 	} // doCancel_remove
 
+	/**
+	 * doBulkRemove called when "eventSubmit_doBulkRemove" is in the request parameters to remove many users at once, or to see how a removal is getting on
+	 */
+	public void doBulkRemove(RunData data, Context context)
+	{
+		SessionState state = ((JetspeedRunData) data).getPortletSessionState(((JetspeedRunData) data).getJs_peid());
+
+		state.setAttribute("mode", "bulkremove");
+
+		// disable auto-updates while not in list mode
+		disableObservers(state);
+
+	} // doBulkRemove
+
+	/**
+	 * doBulkRemove_preview called when "eventSubmit_doBulkRemove_preview" is in the request parameters to read the users listed or uploaded,
+	 * look them up, and ask for the removal to be confirmed
+	 */
+	public void doBulkRemove_preview(RunData data, Context context)
+	{
+		SessionState state = ((JetspeedRunData) data).getPortletSessionState(((JetspeedRunData) data).getJs_peid());
+
+		if (!"POST".equals(data.getRequest().getMethod())) {
+			return;
+		}
+
+		// already started, the page just shows the progress
+		if (BulkRemovalJob.get((String) state.getAttribute(STATE_BULK_REMOVE_JOB)) != null)
+		{
+			return;
+		}
+
+		if (!SecurityService.isSuperUser())
+		{
+			addAlert(state, rb.getString("remove.bulk.notallowed"));
+			return;
+		}
+
+		Set<String> eids = new LinkedHashSet<String>();
+		String typed = data.getParameters().getString("eids");
+		if (typed != null)
+		{
+			for (String eid : typed.split("[\\s,;]+"))
+			{
+				if (StringUtils.isNotBlank(eid)) eids.add(eid.trim());
+			}
+		}
+
+		FileItem file = data.getParameters().getFileItem("file");
+		if (file != null && StringUtils.isNotBlank(file.getFileName()))
+		{
+			try
+			{
+				readBulkRemoveFile(file, eids);
+			}
+			catch (IOException e)
+			{
+				Log.warn("chef", "doBulkRemove_start: " + e.getClass() + ":" + e.getMessage());
+				addAlert(state, rb.getString("remove.bulk.badfile"));
+				return;
+			}
+		}
+
+		// never the user doing the removing
+		eids.remove(SessionManager.getCurrentSession().getUserEid());
+
+		if (eids.isEmpty())
+		{
+			addAlert(state, rb.getString("remove.bulk.none"));
+			return;
+		}
+
+		// split them into the users there are, and the ids that are not known
+		ArrayList<String> found = new ArrayList<String>();
+		ArrayList<String> unknown = new ArrayList<String>();
+		for (String eid : eids)
+		{
+			try
+			{
+				UserDirectoryService.getUserId(eid);
+				found.add(eid);
+			}
+			catch (UserNotDefinedException e)
+			{
+				unknown.add(eid);
+			}
+		}
+
+		if (found.isEmpty())
+		{
+			addAlert(state, rb.getString("remove.bulk.nonefound"));
+			return;
+		}
+
+		// go to the confirmation
+		state.setAttribute(STATE_BULK_REMOVE_EIDS, found);
+		state.setAttribute(STATE_BULK_REMOVE_UNKNOWN, unknown);
+
+	} // doBulkRemove_preview
+
+	/**
+	 * doBulkRemove_start called when "eventSubmit_doBulkRemove_start" is in the request parameters to start removing the users that were
+	 * confirmed
+	 */
+	public void doBulkRemove_start(RunData data, Context context)
+	{
+		SessionState state = ((JetspeedRunData) data).getPortletSessionState(((JetspeedRunData) data).getJs_peid());
+
+		if (!"POST".equals(data.getRequest().getMethod())) {
+			return;
+		}
+
+		// already started, the page just shows the progress
+		if (BulkRemovalJob.get((String) state.getAttribute(STATE_BULK_REMOVE_JOB)) != null)
+		{
+			return;
+		}
+
+		if (!SecurityService.isSuperUser())
+		{
+			addAlert(state, rb.getString("remove.bulk.notallowed"));
+			return;
+		}
+
+		// only the users shown on the confirmation
+		List<String> eids = (List<String>) state.getAttribute(STATE_BULK_REMOVE_EIDS);
+		state.removeAttribute(STATE_BULK_REMOVE_EIDS);
+		state.removeAttribute(STATE_BULK_REMOVE_UNKNOWN);
+		if (eids == null || eids.isEmpty())
+		{
+			addAlert(state, rb.getString("remove.bulk.none"));
+			return;
+		}
+
+		BulkRemovalJob job = BulkRemovalJob.start(new ArrayList<String>(eids), isUnenrollBeforeDeleteEnabled());
+		state.setAttribute(STATE_BULK_REMOVE_JOB, job.getId());
+
+	} // doBulkRemove_start
+
+	/**
+	 * doBulkRemove_back called when "eventSubmit_doBulkRemove_back" is in the request parameters to go back from the confirmation to the list
+	 * of users to remove
+	 */
+	public void doBulkRemove_back(RunData data, Context context)
+	{
+		SessionState state = ((JetspeedRunData) data).getPortletSessionState(((JetspeedRunData) data).getJs_peid());
+
+		if (!"POST".equals(data.getRequest().getMethod())) {
+			return;
+		}
+
+		state.removeAttribute(STATE_BULK_REMOVE_EIDS);
+		state.removeAttribute(STATE_BULK_REMOVE_UNKNOWN);
+
+	} // doBulkRemove_back
+
+	/**
+	 * Read the user ids from the first column of an uploaded CSV file, skipping the heading if there is one.
+	 */
+	private void readBulkRemoveFile(FileItem file, Set<String> eids) throws IOException
+	{
+		CSVReader reader = new CSVReader(new InputStreamReader(file.getInputStream(), "UTF-8"));
+		try
+		{
+			boolean first = true;
+			String[] line;
+			while ((line = reader.readNext()) != null)
+			{
+				String eid = (line.length > 0) ? StringUtils.trimToNull(line[0]) : null;
+				if (eid != null && !(first && "user id".equalsIgnoreCase(eid)))
+				{
+					eids.add(eid);
+				}
+				first = false;
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+
+	} // readBulkRemoveFile
+
+	/**
+	 * doBulkRemove_stop called when "eventSubmit_doBulkRemove_stop" is in the request parameters to stop a removal after the current user
+	 */
+	public void doBulkRemove_stop(RunData data, Context context)
+	{
+		SessionState state = ((JetspeedRunData) data).getPortletSessionState(((JetspeedRunData) data).getJs_peid());
+
+		if (!"POST".equals(data.getRequest().getMethod())) {
+			return;
+		}
+
+		BulkRemovalJob job = BulkRemovalJob.get((String) state.getAttribute(STATE_BULK_REMOVE_JOB));
+		if (job != null)
+		{
+			job.stop();
+		}
+
+	} // doBulkRemove_stop
+
+	/**
+	 * doBulkRemove_done called when "eventSubmit_doBulkRemove_done" is in the request parameters to go back to the list
+	 */
+	public void doBulkRemove_done(RunData data, Context context)
+	{
+		SessionState state = ((JetspeedRunData) data).getPortletSessionState(((JetspeedRunData) data).getJs_peid());
+
+		if (!"POST".equals(data.getRequest().getMethod())) {
+			return;
+		}
+
+		BulkRemovalJob job = BulkRemovalJob.get((String) state.getAttribute(STATE_BULK_REMOVE_JOB));
+		if (job != null && job.isRunning())
+		{
+			// nothing to finish yet
+			return;
+		}
+
+		if (job != null && job.getFailed() == 0 && job.getPending() == 0)
+		{
+			state.setAttribute("successMessage", rb.getFormattedMessage("remove.bulk.success", new Object[] { job.getRemoved() }));
+		}
+		BulkRemovalJob.remove((String) state.getAttribute(STATE_BULK_REMOVE_JOB));
+		state.removeAttribute(STATE_BULK_REMOVE_JOB);
+		state.removeAttribute(STATE_BULK_REMOVE_EIDS);
+		state.removeAttribute(STATE_BULK_REMOVE_UNKNOWN);
+
+		// return to main mode
+		state.removeAttribute("mode");
+
+		// make sure auto-updates are enabled
+		enableObserver(state);
+
+	} // doBulkRemove_done
+
 	/**
 	 * Check to see if password meets requirements set in password policy.
 	 * If current user is admin, ignores password policy.
@@ -1216,21 +1661,8 @@ public class UsersAction extends PagedResourceActionII
 		int count = 1;
 		boolean continueProcessingOptionalAttributes = true;
 		
-		ResourcePropertiesEdit properties;
-		if(user == null) {
-			properties = new BaseResourcePropertiesEdit();
-		} else {
-			properties = user.getPropertiesEdit();
-		}
-		
-		//remove all properties that are in the confugred list
-		//then add back in only the ones that were sent
-		//this allows us to remove items via javascript and they get persisted to the db on form save
-		Map<String,String> configuredProperties = getOptionalAttributes();
-		for(String cp: configuredProperties.keySet()) {
-			properties.removeProperty(cp);
-		}
-		
+		//the attributes that were sent, in order, any duplicate ones override previous ones (currently)
+		Map<String,String> postedAttributes = new LinkedHashMap<String,String>();
 		
 		while(continueProcessingOptionalAttributes) {
 			
@@ -1246,15 +1678,11 @@ public class UsersAction extends PagedResourceActionII
 			
 			//only single values properties
 			//any null ones will wipe out existing ones
-			//and any duplicate ones will override previous ones (currently)
-			properties.addProperty(optionalAttributeKey, optionalAttributeValue);
-			
-			//System.out.println("optionalAttributeKey: " + optionalAttributeKey + ", optionalAttributeValue: " + optionalAttributeValue);
+			postedAttributes.put(optionalAttributeKey, optionalAttributeValue);
 			
 			count++;
 		}
 		
-
 		// add if needed
 		if (user == null)
 		{
@@ -1297,6 +1725,12 @@ public class UsersAction extends PagedResourceActionII
 				if (!SecurityService.isSuperUser()) {
 					id = null;
 				}
+
+				// a new user takes all the posted attributes, an edit only applies what changed (see updateOptionalAttributes)
+				ResourcePropertiesEdit properties = new BaseResourcePropertiesEdit();
+				for(Map.Entry<String,String> attribute: postedAttributes.entrySet()) {
+					properties.addProperty(attribute.getKey(), attribute.getValue());
+				}
 				User newUser = UserDirectoryService.addUser(id, eid, firstName, lastName, email, pw, type, properties);
 
                                 if (SecurityService.isSuperUser()) {
@@ -1377,24 +1811,50 @@ public class UsersAction extends PagedResourceActionII
 			}
 
 			
+			// only what differs is set, so an unchanged user need not be written back
+			boolean changed = false;
+			
 			// eid, pw, type might not be editable
-			if (eid != null) user.setEid(eid);
-			user.setFirstName(firstName);
-			user.setLastName(lastName);
-			user.setEmail(email);
-			if (type != null) user.setType(type);
+			if (eid != null && !eid.equals(user.getEid())) {
+				user.setEid(eid);
+				changed = true;
+			}
+			if (!StringUtils.equals(firstName, StringUtils.trimToNull(user.getFirstName()))) {
+				user.setFirstName(firstName);
+				changed = true;
+			}
+			if (!StringUtils.equals(lastName, StringUtils.trimToNull(user.getLastName()))) {
+				user.setLastName(lastName);
+				changed = true;
+			}
+			if (!StringUtils.equals(email, StringUtils.trimToNull(user.getEmail()))) {
+				user.setEmail(email);
+				changed = true;
+			}
+			if (type != null && !type.equals(user.getType())) {
+				user.setType(type);
+				changed = true;
+			}
 			
-			//add in the updated props
-			user.getPropertiesEdit().addAll(properties);
+			//write only the optional attributes that were changed, added or removed
+			changed |= updateOptionalAttributes(user, postedAttributes);
 			
 			if (SecurityService.isSuperUser()) {
-				if(disabled == 1){
-					user.getProperties().addProperty("disabled", "true");
-				}else{
-					user.getProperties().removeProperty("disabled");
+				boolean wasDisabled = user.getProperties().getProperty("disabled") != null;
+				if(disabled == 1 && !wasDisabled){
+					user.getPropertiesEdit().addProperty("disabled", "true");
+					changed = true;
+				}else if(disabled != 1 && wasDisabled){
+					user.getPropertiesEdit().removeProperty("disabled");
+					changed = true;
 				}
 			}
 			
+			// an earlier post of the form that was rejected may already have changed the user
+			if (changed) {
+				state.setAttribute(STATE_USER_CHANGED, Boolean.TRUE);
+			}
+			
 			//validate the password only for local users
 			if (!isProvidedType(user.getType())) {
 			
@@ -1419,7 +1879,10 @@ public class UsersAction extends PagedResourceActionII
 						return false;
 					}
 
-					if (pw != null) user.setPassword(pw);
+					if (pw != null) {
+						user.setPassword(pw);
+						state.setAttribute(STATE_USER_CHANGED, Boolean.TRUE);
+					}
 				}
 			}
 		}
@@ -1442,25 +1905,49 @@ public class UsersAction extends PagedResourceActionII
 	 * user.additional.attribute.display.att1=Attribute 1
 	 * user.additional.attribute.display.att2=Attribute 2
 	 * user.additional.attribute.display.att3=Attribute 3
+	 * 
+	 * The map is read only, and shared until the configuration changes.
 	 * @return
 	 */
 	private Map<String,String> getOptionalAttributes() {
 		
-		Map<String,String> atts = new LinkedHashMap<String,String>();
+		return toolConfig.getOptionalAttributes();
 		
-		String configs[] = ServerConfigurationService.getStrings("user.additional.attribute");
-		if (configs != null) {
-			for (int i = 0; i < configs.length; i++) {
-				String key = configs[i];
-				if (!key.isEmpty()) {
-					String value = ServerConfigurationService.getString("user.additional.attribute.display." + key, key);
-					atts.put(key, value);
-				}
+	}
+	
+	/**
+	 * Bring the user's optional attributes in line with those sent with the form, touching only the ones that differ.
+	 * Configured attributes that were not sent have been removed on the form.
+	 * @param user the user being edited
+	 * @param postedAttributes the attributes sent, by name
+	 * @return true if any attribute was changed
+	 */
+	private boolean updateOptionalAttributes(UserEdit user, Map<String,String> postedAttributes) {
+		
+		Map<String,String> current = getCurrentAttributes(user);
+		ResourcePropertiesEdit properties = user.getPropertiesEdit();
+		boolean changed = false;
+		
+		for(String cp: getOptionalAttributes().keySet()) {
+			if (!postedAttributes.containsKey(cp) && current.get(cp) != null) {
+				properties.removeProperty(cp);
+				changed = true;
 			}
 		}
 		
-		return atts;
+		for(Map.Entry<String,String> attribute: postedAttributes.entrySet()) {
+			String value = attribute.getValue();
+			if (!StringUtils.equals(value, current.get(attribute.getKey()))) {
+				if (value == null) {
+					properties.removeProperty(attribute.getKey());
+				} else {
+					properties.addProperty(attribute.getKey(), value);
+				}
+				changed = true;
+			}
+		}
 		
+		return changed;
 	}
 	
 	/**
@@ -1705,27 +2192,44 @@ public class UsersAction extends PagedResourceActionII
 			*/
 			
 			//SAK-21884 manual parse method so we can support arbitrary columns
+			//the rows are streamed into a spill file rather than held in the session, only a sample is shown
 			CSVReader reader = new CSVReader(new InputStreamReader(resource.streamContent()));
-		    String [] nextLine;
-		    int lineCount = 0;
-		    List<ImportedUser> list = new ArrayList<ImportedUser>();
-		    Map<Integer,String> mapping = null;
-		    
-		    while ((nextLine = reader.readNext()) != null) {
-		        
-		    	if(lineCount == 0) {
-		        	//header row, capture it
-		    		mapping = mapHeaderRow(nextLine);
-		        } else {
-		        	//map the fields into the object
-		        	list.add(mapLine(nextLine, mapping));
-		        }
-		    	
-		        lineCount++;
-		    }
+			ImportedUserFile.Writer spill = ImportedUserFile.open();
+			ImportedUserFile importedFile = null;
+			try {
+			    String [] nextLine = reader.readNext();
+			    ImportedUserBinder binder = (nextLine == null) ? null : mapHeaderRow(nextLine);
+			    
+			    if (binder == null || !binder.hasEid()) {
+			    	addAlert(state, rb.getString("import.error.header"));
+			    	return;
+			    }
+			    
+			    while ((nextLine = reader.readNext()) != null) {
+			        //map the fields into the object
+			        spill.add(binder.bind(nextLine));
+			    }
+			    
+			    importedFile = spill.close();
+			} finally {
+				reader.close();
+				if (importedFile == null) {
+					spill.discard();
+				}
+			}
+			
+			//check every row before any of them are created
+			try {
+				importedFile.setReports(new ImportedUserValidator(importedFile, toolConfig.getProvidedTypes(), !SecurityService.isSuperUser()).validate());
+			} catch (Exception e) {
+				importedFile.delete();
+				throw e;
+			}
 			
-			state.setAttribute("importedUsers", list);
-			context.put("importedUsers", list);
+			//replace any earlier upload
+			discardImportedFile(state);
+			state.setAttribute(STATE_IMPORT_FILE, importedFile);
+			putImportedFileSample(importedFile, context);
 			
 		} catch (Exception e) {
 			Log.error("chef", "Error reading imported file: " + e.getClass() + " : " + e.getMessage());
@@ -1738,66 +2242,50 @@ public class UsersAction extends PagedResourceActionII
 	}
 	
 	/**
-	 * Takes the header row from the CSV to determines the position of the columns so that we can 
-	 * correctly parse any arbitrary CSV file. This is required because when we iterate over the rest of the lines, 
-	 * we need to know what the column header is, so we can set the approriate ImportedUser property
-	 * or add into the ResourceProperties list, which ever is required.
-	 * 
-	 * @param line	the already split line
-	 * @return
+	 * Put the first few rows of the uploaded file into the context, for the user to check before importing them.
+	 * @param importedFile	the uploaded file
+	 * @param context	the context
 	 */
-	private Map<Integer,String> mapHeaderRow(String[] line) {
-		
-		Map<Integer,String> mapping = new LinkedHashMap<Integer,String>();
+	private void putImportedFileSample(ImportedUserFile importedFile, Context context) {
+		int sampleSize = ServerConfigurationService.getInt("user.import.preview.size", 50);
+		List<ImportedUser> sample = importedFile.readSample(sampleSize);
+		context.put("importedUsers", sample);
+		context.put("importedCount", Integer.valueOf(importedFile.size()));
+		context.put("importedSample", new Object[]{sample.size(), importedFile.size()});
 		
-		for(int i=0;i<line.length;i++){
-			mapping.put(i, line[i]);
+		//and the first few rows with problems
+		List<ImportedUserValidator.Report> reports = new ArrayList<ImportedUserValidator.Report>(importedFile.getReports().values());
+		context.put("importReports", reports.subList(0, Math.min(reports.size(), sampleSize)));
+		context.put("importReportsCount", Integer.valueOf(reports.size()));
+		context.put("importInvalid", new Object[]{importedFile.getInvalidCount(), importedFile.size()});
+	}
+	
+	/**
+	 * Remove the spill file of an upload that was not imported.
+	 * @param state	the session state
+	 */
+	private void discardImportedFile(SessionState state) {
+		ImportedUserFile importedFile = (ImportedUserFile) state.getAttribute(STATE_IMPORT_FILE);
+		if (importedFile != null) {
+			importedFile.delete();
+			state.removeAttribute(STATE_IMPORT_FILE);
 		}
-		
-		return mapping;
-		
 	}
 	
 	/**
-	 * Takes a row of data and maps it into the appropriate ImportedUser properties
-	 * We have a fixed list of properties, anything else goes into ResourceProperties
-	 * @param line
-	 * @param mapping
+	 * Takes the header row from the CSV to determines the position of the columns so that we can 
+	 * correctly parse any arbitrary CSV file. This is required because when we iterate over the rest of the lines, 
+	 * we need to know what the column header is, so we can set the approriate ImportedUser property
+	 * or add into the ResourceProperties list, which ever is required. The binding is worked out once here,
+	 * so the rows themselves are mapped without looking at the column names again.
+	 * 
+	 * @param line	the already split line
 	 * @return
 	 */
-	private ImportedUser mapLine(String[] line, Map<Integer,String> mapping){
-		
-		ImportedUser u = new ImportedUser();
-		ResourceProperties p = new BaseResourcePropertiesEdit();
-		
-		for(Map.Entry<Integer,String> entry: mapping.entrySet()) {
-			int i = entry.getKey();
-			String col = entry.getValue();
-			
-			//now check each of the main properties in turn to determine which one to set, otherwise set into props
-			if(StringUtils.equals(col, IMPORT_USER_ID)) {
-				u.setEid(line[i]);
-			} else if(StringUtils.equals(col, IMPORT_FIRST_NAME)) {
-				u.setFirstName(line[i]);
-			} else if(StringUtils.equals(col, IMPORT_LAST_NAME)) {
-				u.setLastName(line[i]);
-			} else if(StringUtils.equals(col, IMPORT_EMAIL)) {
-				u.setEmail(line[i]);
-			} else if(StringUtils.equals(col, IMPORT_PASSWORD)) {
-				u.setPassword(line[i]);
-			} else if(StringUtils.equals(col, IMPORT_TYPE)) {
-				u.setType(line[i]);
-			} else {
-				//only add if not blank
-				if(StringUtils.isNotBlank(line[i])) {
-					p.addProperty(col, line[i]);
-				}
-			}
-		}
+	private ImportedUserBinder mapHeaderRow(String[] line) {
 		
-		u.setProperties(p);
+		return ImportedUserBinder.compile(line);
 		
-		return u;
 	}
 	
 	/**
@@ -1806,13 +2294,6 @@ public class UsersAction extends PagedResourceActionII
 	 * @return
 	 */
 	private boolean isProvidedType(String userType) {
-		boolean provided = false;
-		String[] providedTypes = ServerConfigurationService.getStrings("user.type.provided");
-		if (providedTypes != null && providedTypes.length > 0) {
-			List<String> typeList = Arrays.asList(providedTypes);
-			if (typeList.contains(userType))
-				provided = true;
-		}
-		return provided;
+		return toolConfig.isProvidedType(userType);
 	}
 }
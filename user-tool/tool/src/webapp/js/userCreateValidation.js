@@ -34,16 +34,19 @@ USER.validatePassword = function () {
 
     // If the password field has a value:
     // 1) make the AJAX call to the validate password REST endpoint
-    // 2) conditionally display the appropriate messages
-    // 3) conditionally hide/show the strength info message
+    // 2) when it answers, conditionally display the appropriate messages
+    // 3) conditionally hide/show the strength info message, and validate the form again
     if (USER.isPasswordPolicyEnabled && pw.length > 0) {
-        USER.validatePasswordREST(pw, username);
-        USER.displayMessages(strongMsg, moderateMsg, weakMsg, failMsg, strengthBar, strengthBarMeter);
-        USER.displayStrengthInfo();
+        USER.validatePasswordREST(pw, username, function () {
+            USER.displayMessages(strongMsg, moderateMsg, weakMsg, failMsg, strengthBar, strengthBarMeter);
+            USER.displayStrengthInfo();
+            USER.validateForm();
+        });
     }
 
     // Otherwise, password policy is disabled OR the password field has no value
     else {
+        USER.cancelPasswordREST();
         USER.passwordValid = pw.length > 0;
         USER.hideAllElements(strongMsg, moderateMsg, weakMsg, failMsg, strengthInfo, strengthBar, strengthBarMeter);
     }
@@ -58,22 +58,26 @@ USER.validatePassword = function () {
 
         // If the password field has a value:
         // 1) make the AJAX call to the validate password REST endpoint
-        // 2) conditionally display the appropriate messages
-        // 3) conditionally hide/show the strength info message
+        // 2) when it answers, conditionally display the appropriate messages
+        // 3) conditionally hide/show the strength info message, and validate the form again
         if (pass.length > 0) {
-            USER.validatePasswordREST(pass, username);
-            USER.displayMessages(strongMsg, moderateMsg, weakMsg, failMsg, strengthBar, strengthBarMeter);
-            USER.displayStrengthInfo();
+            USER.validatePasswordREST(pass, username, function () {
+                USER.displayMessages(strongMsg, moderateMsg, weakMsg, failMsg, strengthBar, strengthBarMeter);
+                USER.displayStrengthInfo();
+                USER.validateForm();
+            });
         }
 
         // Password field has no value, hide all messages
         else {
+            USER.cancelPasswordREST();
             USER.hideAllElements(strongMsg, moderateMsg, weakMsg, failMsg, strengthInfo, strengthBar, strengthBarMeter);
         }
     }
 
     // There is no password field or the password policy is disabled, mark the password as valid and hide all messages
     else {
+        USER.cancelPasswordREST();
         USER.hideAllElements(strongMsg, moderateMsg, weakMsg, failMsg, strengthInfo, strengthBar, strengthBarMeter);
         USER.passwordValid = true;
     }
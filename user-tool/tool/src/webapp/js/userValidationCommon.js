@@ -31,6 +31,8 @@ USER.passwordModerate = false;
 USER.passwordStrong = false;
 USER.passwordsMatch = false;
 USER.isPasswordPolicyEnabled = false;
+USER.passwordRatingUrl = null;
+USER.passwordRequest = 0;
 
 // Get an element by ID
 USER.get = function (id) {
@@ -82,35 +84,62 @@ USER.displayStrengthInfo = function () {
     }
 }
 
-// Make the AJAX call to the validate password REST endpoint
-USER.validatePasswordREST = function (password, username) {
+// Ask the tool how strong the password is, then call done with the rating in the USER variables.
+// Only the answer for the latest password is used, as the answers may come back out of order.
+// If the tool can't answer (too many requests, or an error), no rating is shown and the form may be
+// submitted, the password is checked again when it is saved.
+USER.validatePasswordREST = function (password, username, done) {
+    var request = ++USER.passwordRequest;
     jQuery.ajax({
-        url: "/direct/user/validatePassword",
+        url: USER.passwordRatingUrl,
         type: "POST",
-        data: "password=" + password + "&username=" + username,
-        async: false,
+        data: { password: password, eid: username },
+        dataType: "json",
         success: function (data) {
+            if (request !== USER.passwordRequest) {
+                return;
+            }
+
             USER.passwordValid = false;
             USER.passwordWeak = false;
             USER.passwordModerate = false;
             USER.passwordStrong = false;
 
-            if ("WEAK" === data) {
+            if ("WEAK" === data.rating) {
                 USER.passwordValid = true;
                 USER.passwordWeak = true;
             }
-            else if ("MODERATE" === data) {
+            else if ("MODERATE" === data.rating) {
                 USER.passwordValid = true;
                 USER.passwordModerate = true;
             }
-            else if ("STRONG" === data) {
+            else if ("STRONG" === data.rating || "PASSED_DEFAULT" === data.rating) {
                 USER.passwordValid = true;
                 USER.passwordStrong = true;
             }
+
+            done();
+        },
+        error: function () {
+            if (request !== USER.passwordRequest) {
+                return;
+            }
+
+            USER.passwordValid = true;
+            USER.passwordWeak = false;
+            USER.passwordModerate = false;
+            USER.passwordStrong = false;
+
+            done();
         }
     });
 }
 
+// Forget any rating still on its way, as the password has gone
+USER.cancelPasswordREST = function () {
+    USER.passwordRequest++;
+}
+
 // Display the appropriate messages based on the current password valid and strength status
 USER.displayMessages = function (strongMsg, moderateMsg, weakMsg, failMsg, strengthBar, strengthBarMeter) {
     USER.display(strongMsg, USER.passwordStrong);